@@ -0,0 +1,201 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Paces the database download according to battery state and how much is left.
+ *  full:    plugged in, no usable database, or almost done -> as fast as the link goes
+ *  trickle: on battery -> capped at TRICKLEKBPS
+ *  charger: on battery and battery low -> transfer stopped, resumes from partial file when retried
+ * Called by download thread for each block received from the network.
+ * Doesn't wait out a low battery with the connection open, the server or NAT
+ * would drop the idle socket long before the watch gets charged.
+ */
+public class BandwidthController {
+    public final static int MODE_FULL    = 0;
+    public final static int MODE_TRICKLE = 1;
+    public final static int MODE_CHARGER = 2;
+
+    private final static int CHECKMS     = 5000;   // re-check battery this often
+    private final static int FINISHMS    = 30000;  // go full speed if done within this time
+    private final static int LOWBATPCT   = 30;     // stop on battery below this level
+    private final static int RATEMS      = 1000;   // measure rate over this interval
+    private final static int TRICKLEKBPS = 256;    // kbytes/sec on battery
+
+    private final static String[] modeNames = { "full", "trickle", "charger" };
+    private final static IntentFilter batteryFilter = new IntentFilter (Intent.ACTION_BATTERY_CHANGED);
+
+    // battery state shared by everything that checks it, read at most every CHECKMS
+    private static boolean batteryKnown;    // got a battery state
+    private static boolean batteryPlugged;  // on charger
+    private static int batteryPct;          // charge level, -1 if unknown
+    private static long batteryReadAt;      // when the state was read
+
+    private boolean urgent;         // no database or about to expire, don't hold back
+    private Context ctx;
+    private volatile int mode;
+    private long allowedAt;         // time next block can be read in trickle mode
+    private long checkedAt;         // time battery last checked
+    private long rateBytes;         // bytes received since rateStart
+    private long rateStart;         // time current rate interval started
+    private volatile int rateBps;   // smoothed achieved rate, bytes/sec
+    private long remaining;         // bytes still to download
+
+    // thrown to stop the transfer when battery is low
+    // the partial download is kept so it can be resumed when charging
+    public static class LowBatteryException extends IOException {
+        public LowBatteryException ()
+        {
+            super ("battery low, plug in charger");
+        }
+    }
+
+    public BandwidthController (Context ctx, boolean urgent)
+    {
+        this.ctx = ctx;
+        this.urgent = urgent;
+    }
+
+    /**
+     * Starting a new transfer.
+     *  Input:
+     *   remaining = number of bytes to be transferred
+     */
+    public void start (long remaining)
+    {
+        this.remaining = remaining;
+        long now = System.currentTimeMillis ();
+        allowedAt = now;
+        checkedAt = 0;
+        rateBytes = 0;
+        rateStart = now;
+        rateBps   = 0;
+        mode = checkMode (now);
+    }
+
+    /**
+     * See if battery is ok to start a transfer.
+     * Call before opening the connection so we don't open one just to stop it.
+     */
+    public void checkBattery ()
+            throws LowBatteryException
+    {
+        if (checkMode (System.currentTimeMillis ()) == MODE_CHARGER) throw new LowBatteryException ();
+    }
+
+    /**
+     * Some bytes were just received, wait as needed before receiving more.
+     * Throws LowBatteryException if the transfer should stop until charging.
+     */
+    public void transferred (int nbytes)
+            throws InterruptedException, LowBatteryException
+    {
+        remaining -= nbytes;
+        long now = System.currentTimeMillis ();
+
+        // update smoothed achieved rate
+        rateBytes += nbytes;
+        long ms = now - rateStart;
+        if (ms >= RATEMS) {
+            int bps = (int) (rateBytes * 1000 / ms);
+            rateBps   = (rateBps == 0) ? bps : (rateBps * 3 + bps) / 4;
+            rateBytes = 0;
+            rateStart = now;
+        }
+
+        // maybe charger got plugged in or unplugged
+        if (now - checkedAt >= CHECKMS) mode = checkMode (now);
+
+        switch (mode) {
+
+            // stop transfer, caller closes connection and keeps what it has
+            case MODE_CHARGER: {
+                throw new LowBatteryException ();
+            }
+
+            // space blocks out so we average the trickle rate
+            case MODE_TRICKLE: {
+                allowedAt = Math.max (allowedAt, now - RATEMS) + nbytes / TRICKLEKBPS;
+                if (allowedAt > now) Thread.sleep (allowedAt - now);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Get mode and rate for display, eg, "trickle 250KB/s".
+     */
+    public String getStatus ()
+    {
+        return String.format (Locale.US, "%s %dKB/s", modeNames[mode], rateBps / 1024);
+    }
+
+    /**
+     * See if battery is low and not being charged.
+     */
+    public static synchronized boolean isLowBattery (Context ctx, int minpct)
+    {
+        readBattery (ctx);
+        return batteryKnown && ! batteryPlugged && (batteryPct >= 0) && (batteryPct < minpct);
+    }
+
+    // update battery state if it hasn't been read recently
+    // caller must hold class lock
+    private static void readBattery (Context ctx)
+    {
+        long now = System.currentTimeMillis ();
+        if ((batteryReadAt != 0) && (now - batteryReadAt < CHECKMS)) return;
+        batteryReadAt = now;
+
+        // sticky broadcast, returns current state without registering anything
+        Intent battery = ctx.registerReceiver (null, batteryFilter);
+        batteryKnown = battery != null;
+        if (batteryKnown) {
+            batteryPlugged = battery.getIntExtra (BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            int level = battery.getIntExtra (BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra (BatteryManager.EXTRA_SCALE, -1);
+            batteryPct = ((level >= 0) && (scale > 0)) ? level * 100 / scale : -1;
+        }
+    }
+
+    // decide what mode to be in based on battery state and what's left
+    private int checkMode (long now)
+    {
+        checkedAt = now;
+        if (urgent) return MODE_FULL;
+        if ((rateBps > 0) && (remaining * 1000 / rateBps < FINISHMS)) return MODE_FULL;
+
+        synchronized (BandwidthController.class) {
+            readBattery (ctx);
+            if (! batteryKnown || batteryPlugged) return MODE_FULL;
+            if ((batteryPct >= 0) && (batteryPct < LOWBATPCT)) return MODE_CHARGER;
+        }
+        return MODE_TRICKLE;
+    }
+}
@@ -35,10 +35,11 @@ import android.widget.RadioButton;
 import android.widget.RadioGroup;
 import android.widget.TextView;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Set;
 import java.util.UUID;
 
@@ -51,7 +52,7 @@ public class BluetoothGps extends ExternalGps {
     private final static String CLICKTOSEL = "click to select...";
     private final static String SPPUUID = "00001101-0000-1000-8000-00805F9B34FB";
 
-    private BufferedReader btReader;
+    private ReadableByteChannel btChannel;
     private SharedPreferences prefs;
     private TextView btdevidView;
     private TextView btuuidView;
@@ -313,8 +314,8 @@ public class BluetoothGps extends ExternalGps {
         editr.apply ();
 
         // set up to read from stream
-        btReader = new BufferedReader (new InputStreamReader (socket.getInputStream ()));
-        return btReader;
+        btChannel = Channels.newChannel (socket.getInputStream ());
+        return btChannel;
     }
 
     private static class ConnectException extends Exception {
@@ -325,13 +326,14 @@ public class BluetoothGps extends ExternalGps {
     }
 
     /**
-     * Read an NMEA line from GPS receiver using Bluetooth.
+     * Read whatever NMEA bytes are available from GPS receiver using Bluetooth.
+     * Sentences may be split across reads.
      */
     @Override  // ExternalGps
-    protected String readSocket ()
+    protected int readSocket (ByteBuffer buf)
             throws Exception
     {
-        return btReader.readLine ();
+        return btChannel.read (buf);
     }
 
     @Override  // ExternalGps
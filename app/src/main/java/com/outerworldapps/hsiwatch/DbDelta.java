@@ -0,0 +1,221 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Rebuild a database file from the previous cycle's file and a binary delta.
+ *
+ * Delta file (after gunzipping), all numbers big-endian:
+ *   int  MAGIC
+ *   long size of new file
+ *   byte[16] md5 of new file
+ *   then any number of:
+ *     'C' long oldofs int len : copy bytes from old file
+ *     'D' int len byte[len]   : literal bytes
+ *   then:
+ *     'E'
+ *
+ * The old file is read as a stream (typically gunzipping the kept .gz) so it never
+ * has to be unpacked on flash.  Copies are done in old file order so it is read once.
+ */
+public class DbDelta {
+    public final static int MAGIC = 0x48534444;  // "HSDD"
+
+    private final static int MAXCOPIES = 1 << 24;  // copy index is packed in low 24 bits
+
+    /**
+     * Apply delta.
+     *  Input:
+     *   deltafile = gunzipped delta file
+     *   oldstream = previous cycle's database as downloaded, read sequentially
+     *   newfile = where to write new database
+     *  Output:
+     *   newfile written and verified against md5 from delta
+     *   throws IOException if anything doesn't match
+     */
+    public static void apply (File deltafile, InputStream oldstream, File newfile)
+            throws IOException, NoSuchAlgorithmException
+    {
+        byte[] buf = new byte[65536];
+        byte[] newmd5 = new byte[16];
+        int ncopies = 0;
+        long[] copyold = new long[1024];
+        long[] copynew = new long[1024];
+        int[]  copylen = new int[1024];
+        long newsize;
+        long written = 0;
+
+        try (RandomAccessFile out = new RandomAccessFile (newfile, "rw")) {
+            out.setLength (0);
+
+            // pass 1: write literal data where it goes, save copies for later
+            try (DataInputStream delta = new DataInputStream (new BufferedInputStream (new FileInputStream (deltafile), buf.length))) {
+                if (delta.readInt () != MAGIC) throw new IOException ("bad delta magic");
+                newsize = delta.readLong ();
+                delta.readFully (newmd5);
+
+                for (int op; (op = delta.readByte ()) != 'E';) {
+                    switch (op) {
+                        case 'C': {
+                            long oldofs = delta.readLong ();
+                            int len = delta.readInt ();
+                            if ((oldofs < 0) || (len < 0)) {
+                                throw new IOException ("bad delta copy " + oldofs + "/" + len);
+                            }
+                            if (ncopies >= MAXCOPIES) throw new IOException ("too many delta copies");
+                            if (ncopies >= copyold.length) {
+                                copyold = Arrays.copyOf (copyold, ncopies * 2);
+                                copynew = Arrays.copyOf (copynew, ncopies * 2);
+                                copylen = Arrays.copyOf (copylen, ncopies * 2);
+                            }
+                            copyold[ncopies] = oldofs;
+                            copynew[ncopies] = written;
+                            copylen[ncopies] = len;
+                            ncopies ++;
+                            written += len;
+                            break;
+                        }
+                        case 'D': {
+                            int len = delta.readInt ();
+                            if (len < 0) throw new IOException ("bad delta data " + len);
+                            if (written + len > newsize) throw new IOException ("delta overflows " + newsize);
+                            out.seek (written);
+                            while (len > 0) {
+                                int rc = Math.min (len, buf.length);
+                                delta.readFully (buf, 0, rc);
+                                out.write (buf, 0, rc);
+                                written += rc;
+                                len -= rc;
+                            }
+                            break;
+                        }
+                        default: throw new IOException ("bad delta op " + op);
+                    }
+                    if (written > newsize) throw new IOException ("delta overflows " + newsize);
+                }
+            }
+            if (written != newsize) throw new IOException ("delta wrote " + written + " of " + newsize);
+            out.setLength (newsize);
+
+            // pass 2: sort copies by old file offset, packing offset and index so it's a primitive sort
+            long[] sorted = new long[ncopies];
+            for (int i = 0; i < ncopies; i ++) {
+                if (copyold[i] >= 1L << 39) throw new IOException ("bad delta copy " + copyold[i] + "/" + copylen[i]);
+                sorted[i] = (copyold[i] << 24) | i;
+            }
+            Arrays.sort (sorted);
+
+            // read old file once, skipping what isn't needed
+            // a copy that overlaps an earlier one gets the overlap from where the earlier one was written
+            // and since they're sorted, the earlier one that reaches furthest covers the whole overlap
+            long oldpos = 0;
+            int cover = -1;
+            for (long s : sorted) {
+                int i = (int) (s & (MAXCOPIES - 1));
+                long oldofs = copyold[i];
+                long newofs = copynew[i];
+                int len = copylen[i];
+                if (len == 0) continue;
+                try {
+                    if (oldofs < oldpos) {
+                        long srcofs = copynew[cover] + oldofs - copyold[cover];
+                        int ovl = (int) Math.min (len, oldpos - oldofs);
+                        while (ovl > 0) {
+                            int rc = Math.min (ovl, buf.length);
+                            out.seek (srcofs);
+                            out.readFully (buf, 0, rc);
+                            out.seek (newofs);
+                            out.write (buf, 0, rc);
+                            srcofs += rc;
+                            newofs += rc;
+                            oldofs += rc;
+                            ovl -= rc;
+                            len -= rc;
+                        }
+                    }
+                    if (len > 0) {
+                        skipFully (oldstream, oldofs - oldpos);
+                        oldpos = oldofs;
+                        out.seek (newofs);
+                        do {
+                            int rc = Math.min (len, buf.length);
+                            readFully (oldstream, buf, rc);
+                            out.write (buf, 0, rc);
+                            oldpos += rc;
+                            len -= rc;
+                        } while (len > 0);
+                    }
+                } catch (EOFException eofe) {
+                    throw new IOException ("bad delta copy " + copyold[i] + "/" + copylen[i], eofe);
+                }
+                if ((cover < 0) || (copyold[i] + copylen[i] > copyold[cover] + copylen[cover])) cover = i;
+            }
+
+            // pass 3: verify what got written
+            MessageDigest digest = MessageDigest.getInstance ("MD5");
+            out.seek (0);
+            for (long ofs = 0; ofs < newsize;) {
+                int rc = (int) Math.min (newsize - ofs, buf.length);
+                out.readFully (buf, 0, rc);
+                digest.update (buf, 0, rc);
+                ofs += rc;
+            }
+            if (! Arrays.equals (digest.digest (), newmd5)) throw new IOException ("delta md5 mismatch");
+        }
+    }
+
+    // skip forward in stream, throws EOFException if it isn't that long
+    private static void skipFully (InputStream is, long len)
+            throws IOException
+    {
+        while (len > 0) {
+            long rc = is.skip (len);
+            if (rc <= 0) {
+                if (is.read () < 0) throw new EOFException ();
+                rc = 1;
+            }
+            len -= rc;
+        }
+    }
+
+    // read exactly len bytes from stream, throws EOFException if it isn't that long
+    private static void readFully (InputStream is, byte[] buf, int len)
+            throws IOException
+    {
+        for (int ofs = 0; ofs < len;) {
+            int rc = is.read (buf, ofs, len - ofs);
+            if (rc < 0) throw new EOFException ();
+            ofs += rc;
+        }
+    }
+}
@@ -22,178 +22,360 @@ package com.outerworldapps.hsiwatch;
 
 import android.util.Log;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 
 /**
  * Decode NMEA messages and update displays.
+ * Decodes fields in place from fixed buffers into reused location and status records,
+ * so nothing is allocated per sentence.
  */
 public class DecodeNMEA {
+    private final static int MAXFIELDS = 24;        // most fields in a sentence we look at
+    private final static int MAXSATS = 64;          // most satellites in one GSV cycle
+    private final static int MAXSENTENCE = 128;     // longest sentence we accept (NMEA says 82)
+    private final static int NQUEUED = 32;          // most sentences queued to gui thread
+
+    private final static int RS_IDLE = 0;           // looking for '$'
+    private final static int RS_BODY = 1;           // collecting '$' up to '*'
+    private final static int RS_CKHI = 2;           // next is checksum high digit
+    private final static int RS_CKLO = 3;           // next is checksum low digit
+
+    // exact powers of ten for parseDouble()
+    private final static double[] POWERS = { 1E0, 1E1, 1E2, 1E3, 1E4, 1E5, 1E6, 1E7, 1E8, 1E9, 1E10,
+            1E11, 1E12, 1E13, 1E14, 1E15, 1E16, 1E17, 1E18, 1E19, 1E20, 1E21, 1E22 };
+
+    // what gets called with decoded messages, normally MainActivity
+    public interface Listener {
+        void runOnUiThread (Runnable r);
+        void gpsLocationReceived (GpsLocation location);
+        void gpsStatusReceived (Collection<GpsStatus> statuses);
+    }
+
+    public  boolean locationEnabled;
+    public  boolean statusEnabled;
+    public  volatile int sentenceCount;     // sentences received with good checksum
+    private Listener listener;
+
+    // receiving thread
+    private byte[] rcvbuf;
+    private int rcvck;
+    private int rcvlen;
+    private int rcvstate;
+    private int rcvxor;
+
+    // queue of sentences from receiving thread to gui thread
     private boolean dequeueRunning;
+    private byte[][] queuebufs;
+    private int queuecount;
+    private int queueget;
+    private int[] queuelens;
+    private Runnable dequeueRunnable;
+
+    // gui thread
     private boolean gotgga;
     private boolean gotrmc;
-    public  boolean locationEnabled;
-    public  boolean statusEnabled;
+    private byte[] sentence;
     private GpsLocation gpsloc;
+    private GpsLocation[] gpslocs;
+    private int gpslocidx;
+    private int gsvnext;
+    private int nfields;
     private int nusedprns;
+    private int sentlen;
+    private int[] fldbeg;
+    private int[] fldend;
     private int[] usedprns;
-    private final LinkedList<String> nmeaMessages;
-    private MainActivity mainActivity;
-    private String[][] gsvs;
+    private SatCycle gsvbuild;
+    private SatCycle gsvsats;
 
-    public DecodeNMEA (MainActivity ma)
+    // satellites from one GSV cycle and the records they are kept in
+    private static class SatCycle {
+        public final ArrayList<GpsStatus> sats = new ArrayList<> (MAXSATS);
+        public final GpsStatus[] pool = new GpsStatus[MAXSATS];
+
+        public SatCycle ()
+        {
+            for (int i = 0; i < MAXSATS; i ++) pool[i] = new GpsStatus ();
+        }
+    }
+
+    public DecodeNMEA (Listener lis)
     {
-        mainActivity = ma;
+        listener = lis;
         usedprns = new int[12];
-        nmeaMessages = new LinkedList<> ();
+
+        rcvbuf = new byte[MAXSENTENCE];
+        queuebufs = new byte[NQUEUED][MAXSENTENCE];
+        queuelens = new int[NQUEUED];
+        sentence = new byte[MAXSENTENCE];
+        fldbeg = new int[MAXFIELDS];
+        fldend = new int[MAXFIELDS];
+
+        // listener (mainActivity.curLoc) holds on to the last one passed to it
+        // so build the next one in the other record
+        gpslocs = new GpsLocation[] { new GpsLocation (), new GpsLocation () };
+
+        // likewise mainActivity.gpsStatuses holds on to last cycle passed to it
+        gsvbuild = new SatCycle ();
+
+        dequeueRunnable = new Runnable () {
+            @Override
+            public void run ()
+            {
+                while (true) {
+                    synchronized (queuebufs) {
+                        if (queuecount == 0) {
+                            dequeueRunning = false;
+                            break;
+                        }
+                        sentlen = queuelens[queueget];
+                        System.arraycopy (queuebufs[queueget], 0, sentence, 0, sentlen);
+                        queueget = (queueget + 1) % NQUEUED;
+                        -- queuecount;
+                    }
+                    processIncomingNMEA ();
+                }
+            }
+        };
     }
 
     /**
-     * Decode incoming NMEA message string.
-     * Can have more than one message.
-     * Can be called by any thread.
+     * Decode incoming NMEA bytes.
+     * Sentences can be split across calls.
+     * Must be called by only one thread at a time.
      */
-    public void gotLine (String line)
+    public void gotBytes (byte[] buf, int off, int len)
             throws Exception
     {
-        int i = line.indexOf ('$');
-        if (i >= 0) {
-            int len = line.length ();
-            int xor = 0;
-            int j = -1;
-            for (; i < len; i ++) {
-                char b = line.charAt (i);
-                switch (b) {
-                    case '$': {
-                        j = i;
-                        xor = 0;
-                        break;
-                    }
-                    case '*': {
-                        if (j >= 0) {
-                            int ck = Integer.parseInt (line.substring (i + 1, i + 3), 16);
-                            if (ck != xor) throw new Exception ("bad NMEA checksum");
-                            String nmea = line.substring (j, i);
-                            queueIncomingNMEA (nmea);
-                            j = -1;
-                        }
-                        break;
-                    }
-                    default: {
-                        xor ^= b & 0xFF;
-                        break;
-                    }
+        for (int end = off + len; off < end; off ++) {
+            gotByte (buf[off] & 0xFF);
+        }
+    }
+
+    // process one incoming byte, queue sentence when checksum received
+    // end of line discards any incomplete sentence
+    private void gotByte (int b)
+            throws Exception
+    {
+        if ((b == '\r') || (b == '\n')) {
+            rcvstate = RS_IDLE;
+            return;
+        }
+        if (b == '$') {
+            rcvbuf[0] = '$';
+            rcvlen = 1;
+            rcvxor = 0;
+            rcvstate = RS_BODY;
+            return;
+        }
+        switch (rcvstate) {
+            case RS_BODY: {
+                if (b == '*') {
+                    rcvstate = RS_CKHI;
+                } else if (rcvlen < MAXSENTENCE) {
+                    rcvbuf[rcvlen++] = (byte) b;
+                    rcvxor ^= b;
+                } else {
+                    rcvstate = RS_IDLE;
                 }
+                break;
+            }
+            case RS_CKHI: {
+                rcvck = hexDigit (b) << 4;
+                rcvstate = RS_CKLO;
+                break;
+            }
+            case RS_CKLO: {
+                rcvstate = RS_IDLE;
+                rcvck |= hexDigit (b);
+                if (rcvck != rcvxor) throw new Exception ("bad NMEA checksum");
+                sentenceCount ++;
+                queueIncomingNMEA ();
+                break;
             }
         }
     }
 
+    private static int hexDigit (int b)
+    {
+        if ((b >= '0') && (b <= '9')) return b - '0';
+        if ((b >= 'A') && (b <= 'F')) return b - 'A' + 10;
+        if ((b >= 'a') && (b <= 'f')) return b - 'a' + 10;
+        throw new NumberFormatException ("bad NMEA checksum digit");
+    }
+
     // queue message to UI thread so processIncomingNMEA() can process it
-    private void queueIncomingNMEA (String nmea)
+    // if UI thread is that far behind, drop the message
+    private void queueIncomingNMEA ()
     {
-        synchronized (nmeaMessages) {
-            nmeaMessages.add (nmea);
-            if (! dequeueRunning) {
-                dequeueRunning = true;
-                mainActivity.runOnUiThread (new Runnable () {
-                    @Override
-                    public void run ()
-                    {
-                        while (true) {
-                            String nmea;
-                            synchronized (nmeaMessages) {
-                                nmea = nmeaMessages.poll ();
-                                if (nmea == null) {
-                                    dequeueRunning = false;
-                                    break;
-                                }
-                            }
-                            processIncomingNMEA (nmea);
-                        }
-                    }
-                });
+        synchronized (queuebufs) {
+            if (queuecount < NQUEUED) {
+                int i = (queueget + queuecount) % NQUEUED;
+                System.arraycopy (rcvbuf, 0, queuebufs[i], 0, rcvlen);
+                queuelens[i] = rcvlen;
+                queuecount ++;
+                if (! dequeueRunning) {
+                    dequeueRunning = true;
+                    listener.runOnUiThread (dequeueRunnable);
+                }
             }
         }
     }
 
-    // runs on UI thread to process incoming NMEA message
-    // calls the mainActivity.gotGps{Location.Status}() methods
-    private void processIncomingNMEA (String nmea)
+    // runs on UI thread to process incoming NMEA message in sentence[0..sentlen-1]
+    // calls the listener.gps{Location,Status}Received() methods
+    private void processIncomingNMEA ()
     {
         try {
-            String[] parts = nmea.split (",");
-            switch (parts[0].substring (3)) {
-
-                // location messages
-                case "GGA": {
-                    if (locationEnabled) {
-                        if (gotgga) gotLocation ();
-                        decodeNMEAhhmmss (parts[1]);
-                        gpsloc.lat = decodeNMEALatLon (parts[2], parts[3], 'N', 'S');
-                        gpsloc.lon = decodeNMEALatLon (parts[4], parts[5], 'E', 'W');
-                        gpsloc.altitude = Double.parseDouble (parts[9]);
-                        if (! parts[10].equals ("M")) throw new Exception ("altitude not in metres");
-                        gotgga = true;
-                        if (gotrmc) gotLocation ();
+            splitFields ();
+
+            // location messages
+            if (isType ('G', 'G', 'A')) {
+                if (locationEnabled) {
+                    if (gotgga) gotLocation ();
+                    decodeNMEAhhmmss (1);
+                    gpsloc.lat = decodeNMEALatLon (2, 3, 'N', 'S');
+                    gpsloc.lon = decodeNMEALatLon (4, 5, 'E', 'W');
+                    gpsloc.altitude = parseDouble (9);
+                    if ((nfields <= 10) || (fldend[10] - fldbeg[10] != 1) || (sentence[fldbeg[10]] != 'M')) {
+                        throw new Exception ("altitude not in metres");
                     }
-                    break;
+                    gotgga = true;
+                    if (gotrmc) gotLocation ();
+                }
+            } else if (isType ('R', 'M', 'C')) {
+                if (locationEnabled) {
+                    if (gotrmc) gotLocation ();
+                    decodeNMEAhhmmss (1);
+                    gpsloc.lat = decodeNMEALatLon (3, 4, 'N', 'S');
+                    gpsloc.lon = decodeNMEALatLon (5, 6, 'E', 'W');
+                    gpsloc.speed = parseDouble (7) / Lib.KtPerMPS;
+                    gpsloc.truecourse = parseDouble (8);
+                    decodeNMEAddmmyy (9);
+                    gotrmc = true;
+                    if (gotgga) gotLocation ();
                 }
-                case "RMC": {
-                    if (locationEnabled) {
-                        if (gotrmc) gotLocation ();
-                        decodeNMEAhhmmss (parts[1]);
-                        gpsloc.lat = decodeNMEALatLon (parts[3], parts[4], 'N', 'S');
-                        gpsloc.lon = decodeNMEALatLon (parts[5], parts[6], 'E', 'W');
-                        gpsloc.speed = Double.parseDouble (parts[7]) / Lib.KtPerMPS;
-                        gpsloc.truecourse = Double.parseDouble (parts[8]);
-                        decodeNMEAddmmyy (parts[9]);
-                        gotrmc = true;
-                        if (gotgga) gotLocation ();
+            }
+
+            // status messages
+            else if (isType ('G', 'S', 'A')) {
+                if (statusEnabled) {
+                    // fields 3..14 are prns used for fix, unused ones are empty and can be anywhere
+                    // last 3 fields are dilutions of precision
+                    nusedprns = 0;
+                    for (int i = 3; (i < usedprns.length + 3) && (i + 3 < nfields); i ++) {
+                        if (! isEmpty (i)) usedprns[nusedprns++] = parseInt (i);
                     }
-                    break;
+                    gotStatus ();
                 }
+            } else if (isType ('G', 'S', 'V')) {
+                if (statusEnabled) {
+                    int totsen = parseInt (1);
+                    int thissn = parseInt (2);
+                    if (thissn == 1) {
+                        gsvbuild.sats.clear ();
+                        gsvnext = 1;
+                    }
 
-                // status messages
-                case "GSA": {
-                    if (statusEnabled) {
-                        nusedprns = 0;
-                        for (int i = 0; (i < usedprns.length) && (i + 6 < parts.length); ) {
-                            usedprns[i] = Integer.parseInt (parts[i + 3]);
-                            nusedprns = ++i;
+                    // ignore the rest of cycle if we missed the start or one in the middle
+                    if (thissn == gsvnext) {
+                        gsvnext ++;
+                        decodeNMEASatellites ();
+                        if (thissn == totsen) {
+                            SatCycle done = gsvbuild;
+                            gsvbuild = (gsvsats == null) ? new SatCycle () : gsvsats;
+                            gsvsats = done;
+                            gsvnext = 0;
+                            gotStatus ();
                         }
-                        gotStatus ();
                     }
-                    break;
                 }
+            }
+        } catch (Exception e) {
+            Log.w (MainActivity.TAG, "error processing NMEA " +
+                    new String (sentence, 0, sentlen, StandardCharsets.US_ASCII), e);
+        }
+    }
 
-                case "GSV": {
-                    if (statusEnabled) {
-                        int totsen = Integer.parseInt (parts[1]);
-                        int thissn = Integer.parseInt (parts[2]);
-                        if (thissn == 1) gsvs = new String[totsen][];
-                        gsvs[thissn - 1] = parts;
-                        if (thissn == totsen) gotStatus ();
-                    }
+    // find the commas in sentence[0..sentlen-1]
+    // field 0 is the $ttsss message type
+    private void splitFields ()
+    {
+        nfields = 0;
+        int beg = 0;
+        for (int i = 0; i < sentlen; i ++) {
+            if (sentence[i] == ',') {
+                if (nfields >= MAXFIELDS) return;
+                fldbeg[nfields] = beg;
+                fldend[nfields++] = i;
+                beg = i + 1;
+            }
+        }
+        if (nfields < MAXFIELDS) {
+            fldbeg[nfields] = beg;
+            fldend[nfields++] = sentlen;
+        }
+    }
+
+    // see if message is $ttabc
+    private boolean isType (char a, char b, char c)
+    {
+        return (fldend[0] == 6) && (sentence[3] == a) && (sentence[4] == b) && (sentence[5] == c);
+    }
+
+    private boolean isEmpty (int f)
+    {
+        return (f >= nfields) || (fldbeg[f] == fldend[f]);
+    }
+
+    // GSV satellites are in groups of 4 fields starting at field 4: prn,elev,azim,snr
+    // snr is empty if satellite not being tracked
+    private void decodeNMEASatellites ()
+    {
+        ArrayList<GpsStatus> sats = gsvbuild.sats;
+        for (int i = 4; i + 4 <= nfields; i += 4) {
+            if (isEmpty (i) || isEmpty (i + 1) || isEmpty (i + 2)) continue;
+            int prn = parseInt (i);
+            GpsStatus status = null;
+            int nsats = sats.size ();
+            for (int j = 0; j < nsats; j ++) {
+                if (sats.get (j).prn == prn) {
+                    status = sats.get (j);
                     break;
                 }
             }
-        } catch (Exception e) {
-            Log.w (MainActivity.TAG, "error processing NMEA " + nmea, e);
+            if (status == null) {
+                if (nsats >= MAXSATS) continue;
+                status = gsvbuild.pool[nsats];
+                sats.add (status);
+            }
+            status.prn  = prn;
+            status.elev = parseDouble (i + 1);
+            status.azim = parseDouble (i + 2);
+            status.snr  = isEmpty (i + 3) ? 0.0 : parseDouble (i + 3);
         }
     }
 
     // hhmmss.sss
-    private void decodeNMEAhhmmss (String hhmmss)
+    private void decodeNMEAhhmmss (int f)
     {
-        int hhmmsssss = (int) Math.round (Double.parseDouble (hhmmss) * 1000.0);
+        int hhmmsssss = (int) Math.round (parseDouble (f) * 1000.0);
         int sssss = hhmmsssss % 100000;
         int mm = hhmmsssss / 100000 % 100;
         int hh = hhmmsssss / 10000000 % 100;
         int msec = hh * 3600000 + mm * 60000 + sssss;
         if ((gpsloc == null) || (gpsloc.time % 86400000 != msec)) {
             if (gpsloc != null) gotLocation ();
-            gpsloc = new GpsLocation ();
+            gpslocidx ^= 1;
+            gpsloc = gpslocs[gpslocidx];
+            gpsloc.lat = 0.0;
+            gpsloc.lon = 0.0;
+            gpsloc.altitude = 0.0;
+            gpsloc.magvar = 0.0;
+            gpsloc.speed = 0.0;
+            gpsloc.truecourse = 0.0;
             long now = System.currentTimeMillis ();
             long nowday = now / 86400000;
             if (msec > 64800000 && now % 86400000 < 21600000) nowday --;
@@ -201,32 +383,106 @@ public class DecodeNMEA {
         }
     }
 
-    private void decodeNMEAddmmyy (String ddmmyy)
+    // ddmmyy
+    private void decodeNMEAddmmyy (int f)
+    {
+        if ((f >= nfields) || (fldend[f] - fldbeg[f] < 6)) throw new NumberFormatException ("bad ddmmyy");
+        int i = fldbeg[f];
+        int dd = parseDigits (i, 2);
+        int mm = parseDigits (i + 2, 2);
+        int yy = parseDigits (i + 4, 2);
+        gpsloc.time = daysFromCivil (yy + 2000, mm, dd) * 86400000 + gpsloc.time % 86400000;
+    }
+
+    // days from 1970-01-01 to given gregorian date (year >= 0, month 1..12)
+    // same as Date.UTC () / 86400000 without making a calendar object
+    private static long daysFromCivil (int y, int m, int d)
     {
-        int dd = Integer.parseInt (ddmmyy.substring (0, 2));
-        int mm = Integer.parseInt (ddmmyy.substring (2, 4));
-        int yy = Integer.parseInt (ddmmyy.substring (4, 6));
-        //noinspection deprecation
-        gpsloc.time = Date.UTC (yy + 100, mm - 1, dd, 0, 0, 0) + gpsloc.time % 86400000;
+        if (m <= 2) y --;
+        int era = y / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (m + ((m > 2) ? -3 : 9)) + 2) / 5 + d - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
     }
 
     // ddmm.mmm,D
-    private static double decodeNMEALatLon (String ddmm, String dir, char pos, char neg)
+    private double decodeNMEALatLon (int f, int fdir, char pos, char neg)
     {
-        int ddmmmmm = (int) Math.round (Double.parseDouble (ddmm) * 1000.0);
+        int ddmmmmm = (int) Math.round (parseDouble (f) * 1000.0);
         int mmmmm = ddmmmmm % 100000;
         int dd = ddmmmmm / 100000 % 100;
         double ll = dd + mmmmm / 60000.0;
-        if (dir.charAt (0) == neg) ll = - ll;
-        else if (dir.charAt (0) != pos) throw new NumberFormatException ("bad lat/lon direction " + dir);
+        if (isEmpty (fdir)) throw new NumberFormatException ("missing lat/lon direction");
+        byte dir = sentence[fldbeg[fdir]];
+        if (dir == neg) ll = - ll;
+        else if (dir != pos) throw new NumberFormatException ("bad lat/lon direction " + (char) dir);
         return ll;
     }
 
+    // parse n decimal digits starting at sentence[i]
+    private int parseDigits (int i, int n)
+    {
+        int v = 0;
+        for (n += i; i < n; i ++) {
+            int d = sentence[i] - '0';
+            if ((d < 0) || (d > 9)) throw new NumberFormatException ("bad digit");
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    // parse integer field, throw exception if empty or malformed
+    private int parseInt (int f)
+    {
+        if (isEmpty (f)) throw new NumberFormatException ("missing field " + f);
+        int i = fldbeg[f];
+        int e = fldend[f];
+        boolean neg = sentence[i] == '-';
+        if (neg && (++ i == e)) throw new NumberFormatException ("bad number field " + f);
+        int v = parseDigits (i, e - i);
+        return neg ? - v : v;
+    }
+
+    // parse decimal field, throw exception if empty or malformed
+    // gives same result as Double.parseDouble () for the up-to-15-digit numbers NMEA uses
+    private double parseDouble (int f)
+    {
+        if (isEmpty (f)) throw new NumberFormatException ("missing field " + f);
+        int i = fldbeg[f];
+        int e = fldend[f];
+        boolean neg = (sentence[i] == '-');
+        if (neg || (sentence[i] == '+')) i ++;
+        long mant = 0;
+        int ndigits = 0;
+        int nfrac = -1;
+        for (; i < e; i ++) {
+            int b = sentence[i];
+            if ((b == '.') && (nfrac < 0)) {
+                nfrac = 0;
+                continue;
+            }
+            int d = b - '0';
+            if ((d < 0) || (d > 9)) throw new NumberFormatException ("bad number field " + f);
+            mant = mant * 10 + d;
+            ndigits ++;
+            if (nfrac >= 0) nfrac ++;
+        }
+        if (ndigits == 0) throw new NumberFormatException ("bad number field " + f);
+        if (ndigits > 15) {
+            // too many digits to be exact, let the library do it
+            return Double.parseDouble (new String (sentence, fldbeg[f], e - fldbeg[f], StandardCharsets.US_ASCII));
+        }
+        double v = mant;
+        if (nfrac > 0) v /= POWERS[nfrac];
+        return neg ? - v : v;
+    }
+
     // got both a GGA and an RMC message with same timestamp, so the location message is complete
     // also called if get two GGAs or two RMCs in a row
     private void gotLocation ()
     {
-        mainActivity.gpsLocationReceived (gpsloc);
+        listener.gpsLocationReceived (gpsloc);
         gotgga = false;
         gotrmc = false;
         gpsloc = null;
@@ -235,27 +491,24 @@ public class DecodeNMEA {
     // got either a GSA or GSV message, update status display
     private void gotStatus ()
     {
-        HashMap<Integer,GpsStatus> statuses = new HashMap<> ();
-
-        // GSV gives list of all satellites and their positions
-        for (String[] parts : gsvs) {
-            for (int i = 4; i + 4 <= parts.length;) {
-                GpsStatus status = new GpsStatus ();
-                status.prn  = Integer.parseInt (parts[i++]);
-                status.elev = Double.parseDouble (parts[i++]);
-                status.azim = Double.parseDouble (parts[i++]);
-                status.snr  = Double.parseDouble (parts[i++]);
-                statuses.put (status.prn, status);
-            }
-        }
+        // nothing to show until a GSV cycle is complete
+        if (gsvsats == null) return;
 
         // GSA says which ones are being used to compute fix
-        for (int i = 0; i < nusedprns; i ++) {
-            GpsStatus status = statuses.get (usedprns[i]);
-            if (status != null) status.used = true;
+        ArrayList<GpsStatus> sats = gsvsats.sats;
+        int nsats = sats.size ();
+        for (int j = 0; j < nsats; j ++) {
+            GpsStatus status = sats.get (j);
+            status.used = false;
+            for (int i = 0; i < nusedprns; i ++) {
+                if (usedprns[i] == status.prn) {
+                    status.used = true;
+                    break;
+                }
+            }
         }
 
         // update display
-        mainActivity.gpsStatusReceived (statuses.values ());
+        listener.gpsStatusReceived (sats);
     }
 }
@@ -30,10 +30,12 @@ import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
@@ -44,6 +46,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.zip.GZIPInputStream;
 
 import androidx.annotation.NonNull;
@@ -55,18 +58,20 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
     public final static String baseurl = "https://www.outerworldapps.com/WairToNow";
 
     private final static int NWARNDAYS = 3;
-    private final static int throtkbps = 1024;  // throttle download to 1MByte per second
 
     @SuppressWarnings("deprecation")
     private final static long oldversiontime = Date.UTC (2020-1900, 7-1, 30, 15, 0, 0);
 
     private boolean threadrunning;      // gui thread only
+    private boolean urgent;             // set before thread starts: no database or about to expire
     private long lastdownloadmsgat;     // gui thread only
     private long latestdb;              // gui thread only
     private final MainActivity mainActivity;
     private SQLiteDatabase sqldb;       // gui thread only
+    private WayptSnapshot snapshot;     // gui thread only
     private final String dbdir;
     private String dbpath;              // gui thread only
+    private IdentIndex identIndex;      // gui thread only
 
     public DownloadThread (MainActivity ma)
     {
@@ -92,6 +97,7 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
             sqldb.close ();
             sqldb = null;
         }
+        snapshot = null;
 
         // set up expiration date so buttonColor() works
         latestdb = 0;
@@ -199,6 +205,27 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
         return sqldb;
     }
 
+    /**
+     * Get memory-mapped snapshot that goes with the database.
+     * Null if no database or it was downloaded before snapshots were written.
+     * Called in GUI thread only.
+     */
+    public WayptSnapshot getSnapshot ()
+    {
+        getSqlDB ();
+        return snapshot;
+    }
+
+    /**
+     * Get ident autocompletion index for the database.
+     * Null if still being built or no database.
+     * Called in GUI thread only.
+     */
+    public IdentIndex getIdentIndex ()
+    {
+        return identIndex;
+    }
+
     /**
      * Get color for UPDDB button based on database expiration date.
      * Called in GUI thread only.
@@ -232,6 +259,7 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
                         "takes a few minutes");
             }
             lastdownloadmsgat = System.currentTimeMillis ();
+            urgent = (sqldb == null) || (buttonColor () != Color.GREEN);
             new Thread (this).start ();
         }
     }
@@ -269,43 +297,39 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
             } else {
 
                 // we don't already have it, download into temp file
-                long lastShownPct = -1;
+                // try a delta from the gzipped database we have, else get the whole thing
+                // a full download keeps its gzipped database as the base for later deltas
                 File tempfile = new File (dbdir + "/" + wpdbname + ".tmp");
-                BulkDownload bulkDownload = new BulkDownload (wpgzname, dbdir + "/" + wpdbname + ".gz.tmp");
-                try (InputStream gzis = new GZIPInputStream (bulkDownload)) {
-                    try (OutputStream fos = new FileOutputStream (tempfile)) {
-                        byte[] buf = new byte[8192];
-                        for (int rc; (rc = gzis.read (buf)) > 0; ) {
-                            long percent = bulkDownload.bytesread * 100 / bulkDownload.filesize;
-                            if (lastShownPct != percent) {
-                                lastShownPct = percent;
-                                final String pctstr = percent + "%";
-                                mainActivity.runOnUiThread (new Runnable () {
-                                    @SuppressLint("SetTextI18n")
-                                    @Override
-                                    public void run ()
-                                    {
-                                        String text = mainActivity.menuMainPage.upddbButton.getText ().toString ();
-                                        int i = text.indexOf ('\n');
-                                        if (i >= 0) text = text.substring (0, i);
-                                        text += '\n' + pctstr;
-                                        mainActivity.menuMainPage.upddbButton.setText (text);
-                                        if (sqldb == null) {
-                                            long now = System.currentTimeMillis ();
-                                            if (now - lastdownloadmsgat > 10000) {
-                                                lastdownloadmsgat = now;
-                                                mainActivity.showToast ("download " + pctstr);
-                                            }
-                                        }
-                                    }
-                                });
-                            }
-                            fos.write (buf, 0, rc);
-                        }
+                File basefile = downloadDelta (wpgzname, tempfile);
+                if (basefile == null) {
+                    basefile = new File (dbdir + "/" + wpdbname + ".gz");
+                    File gzfile = new File (dbdir + "/" + wpdbname + ".gz.tmp");
+                    downloadGz (wpgzname, gzfile, tempfile, "");
+                    if (! gzfile.renameTo (basefile)) {
+                        throw new IOException ("error renaming " + gzfile.getPath () + " to " + basefile.getPath ());
                     }
+                }
 
-                    // make sure we got everything correct
-                    bulkDownload.verifyHash ();
+                // build moving map spatial index into the new database
+                // then write compact snapshot from it
+                // they all have fallbacks if missing so don't fail the install over them
+                showProgress ("indexing");
+                try {
+                    SpatialIndex.build (tempfile);
+                } catch (Exception e) {
+                    Log.w (MainActivity.TAG, "error building spatial index", e);
+                }
+                try {
+                    NameSearch.build (tempfile);
+                } catch (Exception e) {
+                    Log.w (MainActivity.TAG, "error building name search index", e);
+                }
+                final File snapfile = new File (WayptSnapshot.snapPath (permfile.getPath ()));
+                try {
+                    WayptSnapshot.build (tempfile, snapfile);
+                } catch (Exception e) {
+                    Log.w (MainActivity.TAG, "error building waypoint snapshot", e);
+                    Lib.Ignored (snapfile.delete ());
                 }
 
                 // download complete, rename temp file to perm file
@@ -317,7 +341,8 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
                 String dbprefix = getDbPrefix ();
                 //noinspection ConstantConditions
                 for (File oldfile : new File (dbdir).listFiles ()) {
-                    if (oldfile.getName ().startsWith (dbprefix) && ! oldfile.equals (permfile)) {
+                    if (oldfile.getName ().startsWith (dbprefix) && ! oldfile.equals (permfile) &&
+                            ! oldfile.equals (snapfile) && ! oldfile.equals (basefile)) {
                         //noinspection ResultOfMethodCallIgnored
                         oldfile.delete ();
                     }
@@ -348,6 +373,16 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
                     }
                 });
             }
+        } catch (BandwidthController.LowBatteryException lbe) {
+            mainActivity.runOnUiThread (new Runnable () {
+                @Override
+                public void run ()
+                {
+                    threadFinished ();
+                    mainActivity.showToastLong ("database download stopped\nbattery low");
+                    mainActivity.showToastLong ("plug in charger then do MENU\u25B7UPDDB\u25B7DOWNLOAD to resume");
+                }
+            });
         } catch (final Exception e) {
             Log.w (MainActivity.TAG, "error downloading database", e);
             mainActivity.runOnUiThread (new Runnable () {
@@ -364,6 +399,127 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
         }
     }
 
+    /**
+     * Try to build new database from the gzipped one we have plus a delta from the server.
+     * The delta is applied straight from the gzipped file so there is only ever one base copy
+     * and it is never re-compressed on the watch.  It stays the base until a full download.
+     *  Input:
+     *   wpgzname = name of full gzipped database on server
+     *   tempfile = where to write new database
+     *  Output:
+     *   returns null: no delta available or it didn't work, do a full download
+     *           else: tempfile written and verified, returns gzipped base file it was built from
+     *   throws LowBatteryException: partial delta kept for resuming
+     */
+    private File downloadDelta (String wpgzname, File tempfile)
+            throws BandwidthController.LowBatteryException
+    {
+        // find latest database we have in its as-downloaded form
+        // the .db files get indexes added to them so they can't be used
+        String dbprefix = getDbPrefix ();
+        String oldexp = null;
+        //noinspection ConstantConditions
+        for (File oldfile : new File (dbdir).listFiles ()) {
+            String oldname = oldfile.getName ();
+            if (oldname.startsWith (dbprefix) && oldname.endsWith (".db.gz")) {
+                String exp = oldname.substring (dbprefix.length (), oldname.length () - 6);
+                if ((oldexp == null) || (oldexp.compareTo (exp) < 0)) oldexp = exp;
+            }
+        }
+        if (oldexp == null) return null;
+
+        // eg, datums/wayptabbs_20201203.db.gz => datums/wayptabbs_20201203.from_20201105.dbd.gz
+        String deltaname = wpgzname.substring (0, wpgzname.length () - 6) + ".from_" + oldexp + ".dbd.gz";
+        File oldgzfile   = new File (dbdir + "/" + dbprefix + oldexp + ".db.gz");
+        File deltafile   = new File (tempfile.getPath () + ".dbd");
+        File deltagzfile = new File (tempfile.getPath () + ".dbd.gz.tmp");
+        try {
+            downloadGz (deltaname, deltagzfile, deltafile, "delta ");
+            Lib.Ignored (deltagzfile.delete ());
+
+            // patch the old database into the new one, gunzipping it as we go
+            showProgress ("patching");
+            try (InputStream gzis = new GZIPInputStream (new FileInputStream (oldgzfile), 65536)) {
+                DbDelta.apply (deltafile, gzis, tempfile);
+            }
+            return oldgzfile;
+        } catch (BandwidthController.LowBatteryException lbe) {
+            Lib.Ignored (tempfile.delete ());
+            throw lbe;
+        } catch (Exception e) {
+            Log.w (MainActivity.TAG, "error applying delta " + deltaname, e);
+            Lib.Ignored (deltagzfile.delete ());
+            Lib.Ignored (tempfile.delete ());
+            return null;
+        } finally {
+            Lib.Ignored (deltafile.delete ());
+        }
+    }
+
+    /**
+     * Download gzipped file from server and gunzip it.
+     *  Input:
+     *   servername = name of gzipped file on server
+     *   gzfile = where to keep gzipped file (resumes if partial one there)
+     *   outfile = where to write gunzipped file
+     *   label = prefix for progress percentage
+     *  Output:
+     *   gzfile, outfile = written and md5 verified
+     *   progress shows percentage plus bandwidth mode and rate
+     */
+    private void downloadGz (String servername, File gzfile, File outfile, String label)
+            throws IOException, NoSuchAlgorithmException
+    {
+        String lastShown = "";
+        BandwidthController bandwidth = new BandwidthController (mainActivity, urgent);
+        bandwidth.checkBattery ();
+        // bulkDownload gets closed even if it isn't a gzip file (eg, server error page)
+        // closing it again via gzis is harmless
+        try (BulkDownload bulkDownload = new BulkDownload (servername, gzfile.getPath (), bandwidth);
+                InputStream gzis = new GZIPInputStream (bulkDownload, BulkDownload.BLOCKSIZE)) {
+            try (OutputStream fos = new FileOutputStream (outfile)) {
+                byte[] buf = new byte[BulkDownload.BLOCKSIZE];
+                for (int rc; (rc = gzis.read (buf)) > 0; ) {
+                    long percent = bulkDownload.bytesread * 100 / bulkDownload.filesize;
+                    String progstr = label + percent + "% " + bandwidth.getStatus ();
+                    if (! lastShown.equals (progstr)) {
+                        lastShown = progstr;
+                        showProgress (progstr);
+                    }
+                    fos.write (buf, 0, rc);
+                }
+            }
+
+            // make sure we got everything correct
+            bulkDownload.verifyHash ();
+        }
+    }
+
+    // display progress string on UPDDB button
+    // maybe display it in a toast if there isn't a database yet
+    private void showProgress (final String progstr)
+    {
+        mainActivity.runOnUiThread (new Runnable () {
+            @SuppressLint("SetTextI18n")
+            @Override
+            public void run ()
+            {
+                String text = mainActivity.menuMainPage.upddbButton.getText ().toString ();
+                int i = text.indexOf ('\n');
+                if (i >= 0) text = text.substring (0, i);
+                text += '\n' + progstr;
+                mainActivity.menuMainPage.upddbButton.setText (text);
+                if (sqldb == null) {
+                    long now = System.currentTimeMillis ();
+                    if (now - lastdownloadmsgat > 10000) {
+                        lastdownloadmsgat = now;
+                        mainActivity.showToast ("download " + progstr);
+                    }
+                }
+            }
+        });
+    }
+
     // GUI thread only
     private void threadFinished ()
     {
@@ -377,13 +533,41 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
     }
 
     // download file via bulkdownload method so we get a filesize up front and checksum
+    // runs as a pipeline so the network, md5 and caller's gunzip all run at the same time:
+    //   net thread: reads blocks from old temp file then network, appends network blocks to temp file
+    //   hash thread: runs md5 over the blocks
+    //   caller: reads blocks via read() calls, typically into GZIPInputStream
+    // blocks cycle back to the free queue when the caller is done with them
     private static class BulkDownload extends InputStream {
+        private final static int BLOCKSIZE = 65536;
+        private final static int NBLOCKS = 16;
+
+        private static class Block {
+            public byte[] buf;
+            public int len;             // -1: end of file or error
+            public IOException error;   // set if net thread failed
+            public String md5Line;      // set at end of file: @@md5=... line from server
+
+            public Block (int size)
+            {
+                buf = new byte[size];
+            }
+        }
+
+        private ArrayBlockingQueue<Block> freeBlocks;
+        private BandwidthController bandwidth;
+        private ArrayBlockingQueue<Block> hashBlocks;
+        private ArrayBlockingQueue<Block> readBlocks;
+        private Block curBlock;     // block being read by caller
         private File tempFile;
         private InputStream inputStream;
+        private int curOffset;      // offset in curBlock.buf of next byte for caller
         private MessageDigest digest;
         private RandomAccessFile tempRandFile;
-        public  long bytesread;     // total bytes read so far, from old temp + network
-        private long fileopened;    // time the network was connected up
+        private String localMD5;    // md5 computed by hash thread
+        private Thread hashThread;
+        private Thread netThread;
+        public volatile long bytesread;  // total bytes read so far, from old temp + network
         public  long filesize;      // total bytes of file, temp + network
         private long tempsize;      // size of old temp file
 
@@ -391,7 +575,8 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
         //  input:
         //   sn = name of file on server
         //   tn = temp filename for intermediate download caching
-        public BulkDownload (String sn, String tn)
+        //   bc = paces network reads
+        public BulkDownload (String sn, String tn, BandwidthController bc)
                 throws IOException, NoSuchAlgorithmException
         {
             // save raw data here in case aborted and restarted later
@@ -402,7 +587,7 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
 
             // start reading from server
             // skip over what we have already downloaded if anything
-            inputStream = new BufferedInputStream (httpGetURL ("bulkdownload.php?f0=" + sn + "&h0=md5&s0=" + tempsize));
+            inputStream = new BufferedInputStream (httpGetURL ("bulkdownload.php?f0=" + sn + "&h0=md5&s0=" + tempsize), BLOCKSIZE);
             String nameLine = readLine ();
             if (! nameLine.startsWith ("@@name=")) throw new IOException ("missing @@name");
             if (! nameLine.substring (7).equals (sn)) throw new IOException ("missing servername");
@@ -419,91 +604,177 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
             } catch (NumberFormatException nfe) {
                 throw new IOException ("bad filesize " + sizeLine.substring (7), nfe);
             }
-            fileopened = System.currentTimeMillis ();
+            bandwidth = bc;
+            bandwidth.start (filesize - tempsize);
             digest = MessageDigest.getInstance ("MD5");
+
+            // set up queues with the free queue filled with blocks
+            freeBlocks = new ArrayBlockingQueue<> (NBLOCKS);
+            hashBlocks = new ArrayBlockingQueue<> (NBLOCKS);
+            readBlocks = new ArrayBlockingQueue<> (NBLOCKS);
+            for (int i = 0; i < NBLOCKS; i ++) freeBlocks.add (new Block (BLOCKSIZE));
+
+            // start pipeline threads going
+            netThread = new Thread () {
+                @Override
+                public void run ()
+                {
+                    netThreadRun ();
+                }
+            };
+            hashThread = new Thread () {
+                @Override
+                public void run ()
+                {
+                    hashThreadRun ();
+                }
+            };
+            netThread.start ();
+            hashThread.start ();
+        }
+
+        // read blocks from old temp file then network and pass them on to hash thread
+        private void netThreadRun ()
+        {
+            try {
+                try {
+                    while (bytesread < filesize) {
+                        Block block = freeBlocks.take ();
+                        int len = (int) Math.min (BLOCKSIZE, filesize - bytesread);
+                        if (bytesread < tempsize) {
+                            len = (int) Math.min (len, tempsize - bytesread);
+                            tempRandFile.readFully (block.buf, 0, len);
+                        } else {
+                            len = inputStream.read (block.buf, 0, len);
+                            if (len < 0) throw new EOFException ("eof downloading");
+                            tempRandFile.write (block.buf, 0, len);
+                            bandwidth.transferred (len);
+                        }
+                        block.len = len;
+                        bytesread += len;
+                        hashBlocks.put (block);
+                    }
+
+                    // there should be an @@md5=<hashbytes>\n next from the server
+                    Block eof = new Block (0);
+                    eof.len = -1;
+                    eof.md5Line = readLine ();
+                    hashBlocks.put (eof);
+                } catch (IOException ioe) {
+                    Block err = new Block (0);
+                    err.len = -1;
+                    err.error = ioe;
+                    hashBlocks.put (err);
+                }
+            } catch (InterruptedException ignored) {
+            }
         }
 
-        // throttle network reads (mostly for debugging)
-        private void throttlereadwait ()
+        // update md5 digest with blocks and pass them on to caller
+        private void hashThreadRun ()
         {
-            long mstotal = (bytesread - tempsize) / throtkbps;
-            long now = System.currentTimeMillis ();
-            long msactual = now - fileopened;
-            if (mstotal > msactual) {
-                try { Thread.sleep (mstotal - msactual); } catch (InterruptedException ignored) { }
+            try {
+                Block block;
+                do {
+                    block = hashBlocks.take ();
+                    if (block.len > 0) {
+                        digest.update (block.buf, 0, block.len);
+                    } else if (block.error == null) {
+                        localMD5 = Lib.bytesToHex (digest.digest ());
+                    }
+                    readBlocks.put (block);
+                } while (block.len >= 0);
+            } catch (InterruptedException ignored) {
             }
         }
 
-        // read next byte, either from old temp file or from network
+        // make sure caller has a block with some data in it
+        //  output:
+        //   returns false: end of file
+        //            true: curBlock has data at curOffset
+        private boolean nextBlock ()
+                throws IOException
+        {
+            while ((curBlock == null) || (curOffset >= curBlock.len)) {
+                if (curBlock != null) {
+                    if (curBlock.error != null) throw curBlock.error;
+                    if (curBlock.len < 0) return false;
+                    freeBlocks.add (curBlock);
+                }
+                try {
+                    curBlock = readBlocks.take ();
+                } catch (InterruptedException ie) {
+                    curBlock = null;
+                    throw new InterruptedIOException ("download interrupted");
+                }
+                curOffset = 0;
+            }
+            return true;
+        }
+
+        // read next byte from pipeline
         @Override
         public int read ()
                 throws IOException
         {
-            if (bytesread >= filesize) return -1;
-            int rc;
-            if (bytesread < tempsize) {
-                rc = tempRandFile.read ();
-            } else {
-                throttlereadwait ();
-                rc = inputStream.read ();
-                if (rc >= 0) tempRandFile.write (rc);
-            }
-            if (rc >= 0) {
-                digest.update ((byte) rc);
-                bytesread ++;
-            }
-            return rc;
+            if (! nextBlock ()) return -1;
+            return curBlock.buf[curOffset++] & 0xFF;
         }
 
-        // read next block, either from old temp file or from network
+        // read next block from pipeline
         @Override
         public int read (@NonNull byte[] buf, int ofs, int len)
                 throws IOException
         {
-            if (len > filesize - bytesread) len = (int) (filesize - bytesread);
-            if (len <= 0) return -1;
-            int rc;
-            if (bytesread < tempsize) {
-                if (len > tempsize - bytesread) len = (int) (tempsize - bytesread);
-                rc = tempRandFile.read (buf, ofs, len);
-            } else {
-                throttlereadwait ();
-                rc = inputStream.read (buf, ofs, len);
-                if (rc > 0) tempRandFile.write (buf, ofs, rc);
-            }
-            if (rc > 0) {
-                digest.update (buf, ofs, rc);
-                bytesread += rc;
-            }
-            return rc;
+            if (len <= 0) return 0;
+            if (! nextBlock ()) return -1;
+            if (len > curBlock.len - curOffset) len = curBlock.len - curOffset;
+            System.arraycopy (curBlock.buf, curOffset, buf, ofs, len);
+            curOffset += len;
+            return len;
         }
 
         // supposedly reached end of file, verify data
         public void verifyHash ()
                 throws IOException
         {
-            // delete temp file in case it all went wrong, it won't gum up a retry
-            Lib.Ignored (tempFile.delete ());
+            // delete temp file if it all went wrong so it won't gum up a retry
+            // caller keeps it if good
+            try {
 
-            // make sure we got correct number of bytes
-            if (bytesread != filesize) throw new IOException ("only read " + bytesread + " of " + filesize);
+                // gunzip might not read all the way to the end
+                while (nextBlock ()) curOffset = curBlock.len;
 
-            // there should be an @@md5=<hashbytes>\n next from the server
-            String md5Line = readLine ();
-            if (! md5Line.startsWith ("@@md5=")) throw new IOException ("missing @@md5");
+                // make sure we got correct number of bytes
+                if (bytesread != filesize) throw new IOException ("only read " + bytesread + " of " + filesize);
 
-            // make sure it matches what we returned out all our read() calls
-            String localmd5 = Lib.bytesToHex (digest.digest ());
-            if (! md5Line.substring (6).equals (localmd5)) throw new IOException ("md5 mismatch");
+                // make sure the server's md5 matches what we returned out all our read() calls
+                String md5Line = curBlock.md5Line;
+                if (! md5Line.startsWith ("@@md5=")) throw new IOException ("missing @@md5");
+                if (! md5Line.substring (6).equals (localMD5)) throw new IOException ("md5 mismatch");
+            } catch (IOException ioe) {
+                Lib.Ignored (tempFile.delete ());
+                throw ioe;
+            }
         }
 
-        // close network and temp files
+        // stop pipeline threads then close network and temp files
         @Override
         public void close ()
                 throws IOException
         {
-            inputStream.close ();
-            tempRandFile.close ();
+            netThread.interrupt ();
+            hashThread.interrupt ();
+            try {
+                inputStream.close ();
+            } finally {
+                try {
+                    netThread.join ();
+                    hashThread.join ();
+                } catch (InterruptedException ignored) {
+                }
+                tempRandFile.close ();
+            }
         }
 
         // read string line from network up to newline
@@ -560,6 +831,11 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
             sqldb.close ();
             sqldb = null;
         }
+        snapshot = null;
+        identIndex = null;
+
+        // anything resolved from the old database is no longer valid
+        Waypt.clearCache ();
 
         if (dbpath == null) {
             latestdb = 0;
@@ -588,6 +864,28 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
         sqldb = SQLiteDatabase.openDatabase (dbpath, null,
                     SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS,
                     this);
+        snapshot = WayptSnapshot.open (dbpath);
+
+        // build ident autocompletion index in background
+        final String ixdbpath = dbpath;
+        new Thread () {
+            @Override
+            public void run ()
+            {
+                try {
+                    final IdentIndex ii = IdentIndex.build (ixdbpath);
+                    mainActivity.runOnUiThread (new Runnable () {
+                        @Override
+                        public void run ()
+                        {
+                            if ((sqldb != null) && ixdbpath.equals (dbpath)) identIndex = ii;
+                        }
+                    });
+                } catch (Exception e) {
+                    Log.w (MainActivity.TAG, "error building ident index", e);
+                }
+            }
+        }.start ();
 
         int bc = buttonColor ();
         if ((mainActivity.menuMainPage != null) && (mainActivity.menuMainPage.upddbButton != null)) {
@@ -621,7 +919,9 @@ public class DownloadThread implements DatabaseErrorHandler, Runnable {
             {
                 mainActivity.showToastLong ("database corrupted, restart app to re-download");
                 Lib.Ignored (new File (dbpath).delete ());
+                Lib.Ignored (new File (WayptSnapshot.snapPath (dbpath)).delete ());
                 sqldb = null;
+                snapshot = null;
             }
         });
     }
@@ -24,6 +24,7 @@ import android.annotation.SuppressLint;
 import android.util.Log;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 import androidx.annotation.NonNull;
 
@@ -31,6 +32,9 @@ import androidx.annotation.NonNull;
  * Use Bluetooth or WiFi UDP to receive GPS location and status information.
  */
 public abstract class ExternalGps implements GpsReceiver {
+    private final static int RCVBUFSIZE = 4096;     // bytes read from socket at a time
+    private final static int STATUSMS = 1000;       // update received sentence count this often
+
     protected boolean capable;
     private DecodeNMEA decodeNMEA;
     protected MainActivity mainActivity;
@@ -39,7 +43,7 @@ public abstract class ExternalGps implements GpsReceiver {
 
     protected abstract @NonNull String typestr ();
     protected abstract @NonNull Closeable openSocket () throws Exception;
-    protected abstract String readSocket () throws Exception;
+    protected abstract int readSocket (ByteBuffer buf) throws Exception;
     protected abstract String receiveException (Exception e);
 
     public ExternalGps (MainActivity ma)
@@ -122,6 +126,20 @@ public abstract class ExternalGps implements GpsReceiver {
         private boolean killed;
         private Closeable socket;
         private Exception exception;
+        private volatile boolean finished;
+        private volatile boolean statusPosted;
+
+        // show latest sentence count, posted at most once every STATUSMS
+        // runs after traffic stops too so the last count gets shown
+        private final Runnable statusUpdater = new Runnable () {
+            @SuppressLint("SetTextI18n")
+            @Override
+            public void run ()
+            {
+                statusPosted = false;
+                if (! finished) statusView.setText ("received " + decodeNMEA.sentenceCount);
+            }
+        };
 
         public ReceiverThread ()
         {
@@ -153,10 +171,19 @@ public abstract class ExternalGps implements GpsReceiver {
                 statusView.setText ("connecting");
                 socket = openSocket ();
                 statusView.setText ("listening");
-                int n = 0;
-                for (String line; ! killed && (line = readSocket ()) != null;) {
-                    statusView.setText ("received " + ++ n);
-                    decodeNMEA.gotLine (line);
+
+                // bytes go straight to the decoder, which puts back together
+                // any sentences split across reads
+                ByteBuffer buf = ByteBuffer.allocate (RCVBUFSIZE);
+                decodeNMEA.sentenceCount = 0;
+                while (! killed) {
+                    buf.clear ();
+                    if (readSocket (buf) < 0) break;
+                    decodeNMEA.gotBytes (buf.array (), buf.arrayOffset (), buf.position ());
+                    if (! statusPosted && (decodeNMEA.sentenceCount > 0)) {
+                        statusPosted = true;
+                        mainActivity.myHandler.postDelayed (statusUpdater, STATUSMS);
+                    }
                 }
             } catch (Exception e) {
                 if (! killed) {
@@ -165,7 +192,8 @@ public abstract class ExternalGps implements GpsReceiver {
                 }
             } finally {
                 try { socket.close (); } catch (Exception ignored) { }
-                statusView.setText ("disconnected");
+                finished = true;
+                statusView.setText ("disconnected after " + decodeNMEA.sentenceCount + " received");
                 if (exception != null) {
                     mainActivity.runOnUiThread (new Runnable () {
                         @SuppressLint("SetTextI18n")
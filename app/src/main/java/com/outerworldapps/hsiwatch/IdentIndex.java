@@ -0,0 +1,132 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Arrays;
+
+/**
+ * Sorted array of all waypoint idents in a database for autocompletion.
+ * Idents are packed end to end in one byte array so the whole thing is
+ * a couple of allocations, and a prefix lookup is a binary search.
+ */
+public class IdentIndex {
+    private byte[] chars;       // all idents concatenated in ascending order
+    private int[] offsets;      // ident i is chars[offsets[i]..offsets[i+1]-1]
+    private int count;
+
+    /**
+     * Build index from the given database.
+     * Opens its own connection so it doesn't hold up GUI thread queries.
+     * Called in a background thread.
+     */
+    public static IdentIndex build (String dbpath)
+    {
+        IdentIndex ii = new IdentIndex ();
+        ii.chars   = new byte[65536];
+        ii.offsets = new int[8192];
+        int nchars = 0;
+        int n = 0;
+
+        SQLiteDatabase sqldb = SQLiteDatabase.openDatabase (dbpath, null,
+                SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            // UNION removes duplicates and sorts in byte order which matches compare()
+            try (Cursor cursor = sqldb.rawQuery (
+                    "SELECT apt_icaoid FROM airports UNION SELECT apt_faaid FROM airports " +
+                    "UNION SELECT fix_name FROM fixes UNION SELECT nav_faaid FROM navaids " +
+                    "UNION SELECT loc_faaid FROM localizers ORDER BY 1", null)) {
+                if (cursor.moveToFirst ()) do {
+                    String ident = cursor.getString (0);
+                    if ((ident == null) || ident.equals ("")) continue;
+                    int len = ident.length ();
+                    if (nchars + len > ii.chars.length) {
+                        ii.chars = Arrays.copyOf (ii.chars, ii.chars.length * 2);
+                    }
+                    if (n + 2 > ii.offsets.length) {
+                        ii.offsets = Arrays.copyOf (ii.offsets, ii.offsets.length * 2);
+                    }
+                    ii.offsets[n++] = nchars;
+                    for (int i = 0; i < len; i ++) {
+                        ii.chars[nchars++] = (byte) ident.charAt (i);
+                    }
+                } while (cursor.moveToNext ());
+            }
+        } finally {
+            sqldb.close ();
+        }
+
+        ii.offsets[n] = nchars;
+        ii.count = n;
+        return ii;
+    }
+
+    /**
+     * Get idents that start with the given prefix.
+     *  Input:
+     *   prefix = upper case prefix
+     *   out = array to fill in
+     *   nout = number of entries already filled in (eg, user waypoints)
+     *  Output:
+     *   returns number of entries filled in out
+     */
+    public int complete (String prefix, String[] out, int nout)
+    {
+        // binary search for first ident >= prefix
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare (mid, prefix) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+
+        // all the ones that start with prefix follow right after
+        int plen = prefix.length ();
+        for (int i = lo; (i < count) && (nout < out.length); i ++) {
+            int ofs = offsets[i];
+            int len = offsets[i+1] - ofs;
+            if (len < plen) break;
+            int j = plen;
+            while (-- j >= 0) {
+                if (chars[ofs+j] != prefix.charAt (j)) break;
+            }
+            if (j >= 0) break;
+            out[nout++] = new String (chars, ofs, len);
+        }
+        return nout;
+    }
+
+    // compare ident i with the given string
+    private int compare (int i, String str)
+    {
+        int ofs = offsets[i];
+        int len = offsets[i+1] - ofs;
+        int slen = str.length ();
+        for (int j = 0; (j < len) && (j < slen); j ++) {
+            int cmp = (chars[ofs+j] & 0xFF) - str.charAt (j);
+            if (cmp != 0) return cmp;
+        }
+        return len - slen;
+    }
+}
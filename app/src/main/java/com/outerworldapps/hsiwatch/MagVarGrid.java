@@ -0,0 +1,205 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import android.content.Context;
+import android.hardware.GeomagneticField;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Magnetic variation from a lat/lon grid of precomputed values.
+ * The grid is computed from GeomagneticField once a month in the background
+ * and saved in a small file, lookups are just a bilinear interpolation.
+ * Altitude is ignored, it changes variation by a small fraction of a degree.
+ * Sign is as in GpsLocation.magvar: magcourse = truecourse + magvar.
+ */
+public class MagVarGrid {
+    private final static int MAGIC = 0x4D564731;    // "MVG1"
+    private final static int STEP  = 2;             // grid spacing, degrees
+    private final static int NLATS = 180 / STEP + 1;
+    private final static int NLONS = 360 / STEP + 1;
+
+    private static volatile float[] grid;   // [lat][lon] from -90,-180 going north and east
+    private static volatile long gridExpires;   // epoch ms that grid's month ends
+    private static boolean loading;         // loading thread running
+    private static File gridfile;
+
+    /**
+     * Load grid from file, recomputing it if missing or from a previous month.
+     * Called once at startup in GUI thread.
+     */
+    public static void init (Context ctx)
+    {
+        if (gridfile != null) return;
+        gridfile = new File (ctx.getCacheDir (), "magvar.grid");
+        startLoading ();
+    }
+
+    // load or compute grid for the current month in a background thread
+    // the old grid, if any, is used until the new one is ready
+    private static synchronized void startLoading ()
+    {
+        if (loading) return;
+        loading = true;
+        new Thread () {
+            @Override
+            public void run ()
+            {
+                Calendar cal = Calendar.getInstance (TimeZone.getTimeZone ("UTC"));
+                int month = cal.get (Calendar.YEAR) * 100 + cal.get (Calendar.MONTH) + 1;
+                float[] g = read (gridfile, month);
+                if (g == null) {
+                    long computeStart = System.currentTimeMillis ();
+                    g = compute (month);
+                    Log.d (MainActivity.TAG, "magvar grid computed in " + (System.currentTimeMillis () - computeStart) + " ms");
+                    write (gridfile, month, g);
+                }
+                cal.clear ();
+                //noinspection MagicConstant
+                cal.set (month / 100, month % 100 - 1, 1);
+                cal.add (Calendar.MONTH, 1);
+                gridExpires = cal.getTimeInMillis ();
+                grid = g;
+                synchronized (MagVarGrid.class) {
+                    loading = false;
+                }
+            }
+        }.start ();
+    }
+
+    /**
+     * Get magnetic variation at the given location.
+     *  Input:
+     *   lat, lon = location (degrees)
+     *   altm = altitude (metres), only used until grid is loaded
+     *   time = epoch ms, only used until grid is loaded
+     */
+    public static double get (double lat, double lon, double altm, long time)
+    {
+        float[] g = grid;
+        if (g == null) {
+            GeomagneticField gmf = new GeomagneticField ((float) lat, (float) lon, (float) altm, time);
+            return - gmf.getDeclination ();
+        }
+
+        // app left running into a new month, get that month's grid
+        if (System.currentTimeMillis () >= gridExpires) startLoading ();
+
+        double y = (lat +  90.0) / STEP;
+        double x = (Lib.NormalLon (lon) + 180.0) / STEP;
+        int iy = (int) y;
+        int ix = (int) x;
+        if (iy > NLATS - 2) iy = NLATS - 2;
+        if (ix > NLONS - 2) ix = NLONS - 2;
+        if (iy < 0) iy = 0;
+        if (ix < 0) ix = 0;
+        double fy = y - iy;
+        double fx = x - ix;
+
+        // unwrap corners around the first one so we don't average 179 and -179 near the poles
+        int i = iy * NLONS + ix;
+        double v00 = g[i];
+        double v01 = unwrap (v00, g[i+1]);
+        double v10 = unwrap (v00, g[i+NLONS]);
+        double v11 = unwrap (v00, g[i+NLONS+1]);
+        double v = (v00 * (1.0 - fx) + v01 * fx) * (1.0 - fy) +
+                   (v10 * (1.0 - fx) + v11 * fx) * fy;
+        if (v >  180.0) v -= 360.0;
+        if (v < -180.0) v += 360.0;
+        return v;
+    }
+
+    private static double unwrap (double ref, double v)
+    {
+        if (v - ref >  180.0) return v - 360.0;
+        if (v - ref < -180.0) return v + 360.0;
+        return v;
+    }
+
+    // compute grid for the middle of the given month
+    private static float[] compute (int month)
+    {
+        Calendar cal = Calendar.getInstance (TimeZone.getTimeZone ("UTC"));
+        //noinspection MagicConstant
+        cal.set (month / 100, month % 100 - 1, 15, 0, 0, 0);
+        long time = cal.getTimeInMillis ();
+        float[] g = new float[NLATS*NLONS];
+        int i = 0;
+        for (int ilat = 0; ilat < NLATS; ilat ++) {
+            float lat = ilat * STEP - 90;
+            for (int ilon = 0; ilon < NLONS; ilon ++) {
+                float lon = ilon * STEP - 180;
+                GeomagneticField gmf = new GeomagneticField (lat, lon, 0.0F, time);
+                g[i++] = - gmf.getDeclination ();
+            }
+        }
+        return g;
+    }
+
+    // read grid from file
+    // returns null if missing, bad or for a different month
+    private static float[] read (File gridfile, int month)
+    {
+        if (! gridfile.exists ()) return null;
+        try (DataInputStream dis = new DataInputStream (new BufferedInputStream (new FileInputStream (gridfile)))) {
+            if (dis.readInt () != MAGIC) return null;
+            if (dis.readInt () != month) return null;
+            if (dis.readInt () != NLATS) return null;
+            if (dis.readInt () != NLONS) return null;
+            float[] g = new float[NLATS*NLONS];
+            for (int i = 0; i < g.length; i ++) g[i] = dis.readFloat ();
+            return g;
+        } catch (IOException ioe) {
+            Log.w (MainActivity.TAG, "error reading " + gridfile.getPath (), ioe);
+            return null;
+        }
+    }
+
+    // write grid to file for next time app starts
+    private static void write (File gridfile, int month, float[] g)
+    {
+        File tempfile = new File (gridfile.getPath () + ".tmp");
+        try {
+            try (DataOutputStream dos = new DataOutputStream (new BufferedOutputStream (new FileOutputStream (tempfile)))) {
+                dos.writeInt (MAGIC);
+                dos.writeInt (month);
+                dos.writeInt (NLATS);
+                dos.writeInt (NLONS);
+                for (float v : g) dos.writeFloat (v);
+            }
+            if (! tempfile.renameTo (gridfile)) throw new IOException ("error renaming " + tempfile.getPath ());
+        } catch (IOException ioe) {
+            Log.w (MainActivity.TAG, "error writing " + gridfile.getPath (), ioe);
+            Lib.Ignored (tempfile.delete ());
+        }
+    }
+}
@@ -27,7 +27,6 @@ import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.hardware.GeomagneticField;
 import android.os.Bundle;
 import android.os.Handler;
 import android.support.wearable.activity.WearableActivity;
@@ -42,12 +41,13 @@ import android.widget.RadioGroup;
 import android.widget.Toast;
 
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Stack;
 
 import androidx.annotation.NonNull;
 
-public class MainActivity extends WearableActivity {
+public class MainActivity extends WearableActivity implements DecodeNMEA.Listener {
     public final static String TAG = "HSIWatch";
 
     public final static double gpsMinSpeedMPS = 3.0;  // must be going this fast for heading valid
@@ -82,7 +82,7 @@ public class MainActivity extends WearableActivity {
     public  int heightPixels;
     public  InternalGps internalGps;
     private LatLon newll;
-    private long gpslastheardat;
+    public  long gpslastheardat;
     private long lastBackPressed;
     public  MapDialView mapDialView;
     private MapZoomButton mapBotButton;
@@ -95,6 +95,7 @@ public class MainActivity extends WearableActivity {
     private RadioGroup gpsSource;
     public  RwyDiagView rwyDiagView;
     private SimulatorGps simulatorGps;
+    private HashSet<View> staleDials = new HashSet<> ();
     private Stack<View> mainPageStack;
     public  View currentMainPage;
     public  View gpsPageView;
@@ -114,6 +115,7 @@ public class MainActivity extends WearableActivity {
         dotsPerSqIn = metrics.xdpi * metrics.ydpi;
 
         curLoc = new GpsLocation ();
+        MagVarGrid.init (this);
         isScreenRound = getResources ().getConfiguration ().isScreenRound ();
         myHandler = new Handler ();
         newll = new LatLon ();
@@ -191,6 +193,7 @@ public class MainActivity extends WearableActivity {
         });
 
         menuMainPage = new MenuMainPage (this);
+        rwyDiagView.tileRegionDownload.resume ();
         setNavMainPageScale ();
 
         setupGpsReceiver ();
@@ -264,6 +267,7 @@ public class MainActivity extends WearableActivity {
             currentMainPage = view;
             setContentView (view);
             activateGPS ();
+            refreshStaleDial ();
         }
     }
 
@@ -347,6 +351,7 @@ public class MainActivity extends WearableActivity {
             currentMainPage = mainPageStack.pop ();
             setContentView (currentMainPage);
             activateGPS ();
+            refreshStaleDial ();
         }
     }
 
@@ -632,12 +637,10 @@ public class MainActivity extends WearableActivity {
     /**
      * Got an incoming GPS location.
      */
+    @Override  // DecodeNMEA.Listener
     public void gpsLocationReceived (GpsLocation location)
     {
-        GeomagneticField gmf = new GeomagneticField (
-                (float) location.lat, (float) location.lon,
-                (float) location.altitude, location.time);
-        location.magvar = - gmf.getDeclination();
+        location.magvar = MagVarGrid.get (location.lat, location.lon, location.altitude, location.time);
 
         // ignore GPS for first 15 sec of every minute
         //if (((System.currentTimeMillis () / 15000) & 3) == 0) return;
@@ -664,10 +667,14 @@ public class MainActivity extends WearableActivity {
             menuMainPage.satsMainPage.gpsStatusView.invalidate ();
         }
 
+        // maybe start downloading runway diagram tiles we will need soon
+        rwyDiagView.tilePrefetcher.update ();
+
         updateNavDial ();
     }
 
     // got an incoming GPS status
+    @Override  // DecodeNMEA.Listener
     public void gpsStatusReceived (Collection<GpsStatus> statuses)
     {
         gpsStatuses = statuses;
@@ -780,13 +787,34 @@ public class MainActivity extends WearableActivity {
 
         // update nav dial
         if (navWaypt != null) navWaypt.updateNeedles (this);
-        navDialView.invalidate ();
+        invalidateDial (navMainPage, navDialView);
 
         // update moving map
-        mapDialView.invalidate ();
+        invalidateDial (mapPageView, mapDialView);
 
         // update runway diagram
-        rwyDiagView.invalidate ();
+        invalidateDial (rwyPageView, rwyDiagView);
+    }
+
+    // redraw dial if its page is showing
+    // otherwise remember to redraw it when its page is shown
+    private void invalidateDial (View page, View dial)
+    {
+        if (currentMainPage == page) {
+            dial.invalidate ();
+        } else {
+            staleDials.add (dial);
+        }
+    }
+
+    // page was just brought to front, redraw its dial if it missed updates
+    private void refreshStaleDial ()
+    {
+        View dial = null;
+        if (currentMainPage == navMainPage) dial = navDialView;
+        if (currentMainPage == mapPageView) dial = mapDialView;
+        if (currentMainPage == rwyPageView) dial = rwyDiagView;
+        if ((dial != null) && staleDials.remove (dial)) dial.invalidate ();
     }
 
     /**
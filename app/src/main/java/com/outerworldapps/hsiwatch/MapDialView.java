@@ -345,6 +345,7 @@ public class MapDialView extends OBSDialView {
                     updateThread.radiusLat = radiusLat;
                     updateThread.radiusLon = radiusLon;
                     updateThread.sqldb = sqldb;
+                    updateThread.snapshot = mainActivity.downloadThread.getSnapshot ();
                     updateThread.start ();
                 }
             }
@@ -354,10 +355,13 @@ public class MapDialView extends OBSDialView {
     /**
      * Run a thread to read waypoints from database then update screen.
      */
-    private class UpdateThread extends Thread {
+    private class UpdateThread extends Thread implements WayptSnapshot.Visitor {
         public double lat, lon;
         public double radiusLat, radiusLon;
         public SQLiteDatabase sqldb;
+        public WayptSnapshot snapshot;
+
+        private HashMap<String,MapWpt> byident;
 
         @Override
         public void run ()
@@ -369,8 +373,85 @@ public class MapDialView extends OBSDialView {
             final double southLat = lat - radiusLat;
             final double eastLon  = lon + radiusLon;
             final double westLon  = lon - radiusLon;
-            HashMap<String,MapWpt> byident = new HashMap<> ();
+            byident = new HashMap<> ();
+            if (snapshot != null) {
+                snapshot.query (southLat, northLat, westLon, eastLon, this);
+            } else if (SpatialIndex.hasIndex (sqldb)) {
+                readIndex (northLat, southLat, eastLon, westLon);
+            } else {
+                scanTables (northLat, southLat, eastLon, westLon);
+            }
+
+            final MapWpt[] array = byident.values ().toArray (nullMapWptArray);
+            Arrays.sort (array);
 
+            // post results to main thread then check proper range again
+            mainActivity.runOnUiThread (new Runnable () {
+                @Override
+                public void run ()
+                {
+                    wayptNorthLat = northLat;
+                    wayptSouthLat = southLat;
+                    wayptEastLon  = eastLon;
+                    wayptWestLon  = westLon;
+                    waypoints     = array;
+                    updateThread  = null;
+                    updateWaypoints ();
+                }
+            });
+        }
+
+        // got an entry in the box from the snapshot
+        // keep airports with long enough runways and VORs
+        @Override  // WayptSnapshot.Visitor
+        public void visit (WayptSnapshot snap, int i)
+        {
+            int type = snap.getType (i);
+            int rft  = snap.getRwyFt (i);
+            boolean nav = type == WayptSnapshot.TYPE_VOR;
+            if (nav || ((type == WayptSnapshot.TYPE_APT) && (rft >= RUNWAYFT))) {
+                addWaypt (snap.getIdent (i), snap.getLat (i), snap.getLon (i), rft, nav);
+            }
+        }
+
+        // read waypoints from the cells of the spatial index that overlap the box
+        private void readIndex (double northLat, double southLat, double eastLon, double westLon)
+        {
+            double lonWidth = eastLon - westLon;
+            try (Cursor cursor = SpatialIndex.query (sqldb, southLat, northLat, westLon, eastLon, RUNWAYFT)) {
+                if (cursor.moveToFirst ()) do {
+                    double wlat = cursor.getDouble (1);
+                    double wlon = cursor.getDouble (2);
+                    double dlon = Lib.NormalLon (wlon - westLon);
+                    if (dlon < 0.0) dlon += 360.0;
+                    if ((wlat > southLat) && (wlat < northLat) && (dlon > 0.0) && (dlon < lonWidth)) {
+                        addWaypt (cursor.getString (0), wlat, wlon, cursor.getInt (3), cursor.getInt (4) != 0);
+                    }
+                } while (cursor.moveToNext ());
+            }
+        }
+
+        // add waypoint to byident list
+        // merge with existing entry of same ident, navaid location takes precedence
+        private void addWaypt (String id, double wlat, double wlon, int rft, boolean nav)
+        {
+            MapWpt mapwpt = byident.get (id);
+            if (mapwpt == null) {
+                mapwpt = new MapWpt ();
+                mapwpt.id = id;
+                byident.put (id, mapwpt);
+            }
+            if (nav || ! mapwpt.nav) {
+                mapwpt.lat = wlat;
+                mapwpt.lon = wlon;
+            }
+            if (nav) mapwpt.nav = true;
+            if (mapwpt.rft < rft) mapwpt.rft = rft;
+        }
+
+        // database doesn't have spatial index, scan the whole navaids and runways tables
+        private void scanTables (double northLat, double southLat, double eastLon, double westLon)
+        {
             // read navaids with type VOR% (VOR, VOR/DME, VORTAC)
             String where = "nav_lat>" + southLat + " AND nav_lat<" + northLat;
             if (eastLon > westLon) {
@@ -418,24 +499,6 @@ public class MapDialView extends OBSDialView {
                     }
                 } while (cursor.moveToNext ());
             }
-
-            final MapWpt[] array = byident.values ().toArray (nullMapWptArray);
-            Arrays.sort (array);
-
-            // post results to main thread then check proper range again
-            mainActivity.runOnUiThread (new Runnable () {
-                @Override
-                public void run ()
-                {
-                    wayptNorthLat = northLat;
-                    wayptSouthLat = southLat;
-                    wayptEastLon  = eastLon;
-                    wayptWestLon  = westLon;
-                    waypoints     = array;
-                    updateThread  = null;
-                    updateWaypoints ();
-                }
-            });
         }
     }
 
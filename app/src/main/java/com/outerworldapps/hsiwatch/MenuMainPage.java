@@ -206,6 +206,12 @@ public class MenuMainPage {
                 sb.append (getGitHash ());
                 if (getGitDirtyFlag ()) sb.append ('+');
                 sb.append ("\n\nhelp available at https://www.outerworldapps.com/HSIWatch");
+                sb.append ("\n\nwaypoint cache: ");
+                sb.append (Waypt.getCacheStats ());
+                sb.append ("\ntile cache: ");
+                sb.append (OpenStreetMap.getCacheStats ());
+                sb.append ("\ntile prefetch: ");
+                sb.append (mainActivity.rwyDiagView.tilePrefetcher.getProgress ());
                 textView.setText (sb);
 
                 mainActivity.showMainPage (aboutPageView);
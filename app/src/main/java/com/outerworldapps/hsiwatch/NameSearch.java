@@ -0,0 +1,148 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Full-text index of airport, navaid and fix names.
+ * Built into the database file just after it is downloaded
+ * so a name search is an FTS lookup, never a table scan.
+ */
+public class NameSearch {
+    private final static String TABLE = "namesearch";
+    private final static int MINPREFIX = 2;     // shorter words must match whole words
+
+    // one waypoint found by search()
+    public static class Hit extends LatLon {
+        public double dist;     // nm from reference point
+        public String ident;
+        public String name;
+    }
+
+    // build index into the given database file
+    // called in download thread before the file is renamed into place
+    public static void build (File dbfile)
+    {
+        SQLiteDatabase sqldb = SQLiteDatabase.openDatabase (dbfile.getPath (), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            sqldb.beginTransaction ();
+            try {
+                sqldb.execSQL ("DROP TABLE IF EXISTS " + TABLE);
+                sqldb.execSQL ("CREATE VIRTUAL TABLE " + TABLE + " USING fts4 (ns_name, ns_ident, ns_lat, ns_lon, " +
+                        "notindexed=ns_ident, notindexed=ns_lat, notindexed=ns_lon)");
+                SQLiteStatement insert = sqldb.compileStatement ("INSERT INTO " + TABLE +
+                        " (ns_name,ns_ident,ns_lat,ns_lon) VALUES (?,?,?,?)");
+                // airports without an icao id go by their faa id, Waypt.find() resolves either
+                String[] queries = {
+                        "SELECT apt_name || IFNULL(' ' || apt_desc1,''),IFNULL(apt_icaoid,apt_faaid),apt_lat,apt_lon FROM airports",
+                        "SELECT IFNULL(nav_type || ' ','') || nav_name,nav_faaid,nav_lat,nav_lon FROM navaids",
+                        "SELECT fix_desc,fix_name,fix_lat,fix_lon FROM fixes" };
+                for (String query : queries) {
+                    try (Cursor cursor = sqldb.rawQuery (query, null)) {
+                        if (cursor.moveToFirst ()) do {
+                            if (cursor.isNull (0) || cursor.isNull (1)) continue;
+                            insert.bindString (1, cursor.getString (0));
+                            insert.bindString (2, cursor.getString (1));
+                            insert.bindDouble (3, cursor.getDouble (2));
+                            insert.bindDouble (4, cursor.getDouble (3));
+                            insert.executeInsert ();
+                        } while (cursor.moveToNext ());
+                    }
+                }
+                insert.close ();
+
+                // merge all the index b-trees into one for fastest lookups
+                sqldb.execSQL ("INSERT INTO " + TABLE + "(" + TABLE + ") VALUES ('optimize')");
+                sqldb.setTransactionSuccessful ();
+            } finally {
+                sqldb.endTransaction ();
+            }
+        } finally {
+            sqldb.close ();
+        }
+    }
+
+    /**
+     * Search for waypoints whose name contains all the words given.
+     *  Input:
+     *   text = words to search for, each of 2 or more letters can be the start of a word in the name
+     *   refll = results are sorted by distance from this point
+     *   max = maximum number of results
+     *  Output:
+     *   returns null: database doesn't have the index
+     *           else: matching waypoints, closest first
+     */
+    public static Hit[] search (SQLiteDatabase sqldb, String text, LatLon refll, int max)
+    {
+        if (! SpatialIndex.hasIndex (sqldb, TABLE)) return null;
+
+        // make each word a prefix match, all words must match
+        // single letters would prefix-match most of the table so they must match a whole word
+        StringBuilder match = new StringBuilder ();
+        for (String word : text.toLowerCase (Locale.US).split ("[^a-z0-9]+")) {
+            if (word.equals ("")) continue;
+            if (match.length () > 0) match.append (' ');
+            match.append (word);
+            if (word.length () >= MINPREFIX) match.append ('*');
+        }
+        ArrayList<Hit> hits = new ArrayList<> ();
+        if (match.length () > 0) {
+
+            // let sqlite pick the closest few by flat-earth distance
+            // so a common word doesn't make us build and sort thousands of hits
+            double coslat = Math.cos (Math.toRadians (refll.lat));
+            String[] args = new String[] { match.toString (), Double.toString (refll.lat),
+                    Double.toString (refll.lon), Double.toString (coslat * coslat) };
+            try (Cursor cursor = sqldb.rawQuery ("SELECT ns_name,ns_ident,ns_lat,ns_lon FROM " + TABLE +
+                    " WHERE " + TABLE + " MATCH ?1" +
+                    " ORDER BY (ns_lat-?2)*(ns_lat-?2)+(ns_lon-?3)*(ns_lon-?3)*?4 LIMIT " + max, args)) {
+                if (cursor.moveToFirst ()) do {
+                    Hit hit = new Hit ();
+                    hit.name  = cursor.getString (0);
+                    hit.ident = cursor.getString (1);
+                    hit.lat   = cursor.getDouble (2);
+                    hit.lon   = cursor.getDouble (3);
+                    hit.dist  = Lib.LatLonDist (refll.lat, refll.lon, hit.lat, hit.lon);
+                    hits.add (hit);
+                } while (cursor.moveToNext ());
+            }
+        }
+
+        Collections.sort (hits, new Comparator<Hit> () {
+            @Override
+            public int compare (Hit o1, Hit o2)
+            {
+                return Double.compare (o1.dist, o2.dist);
+            }
+        });
+        return hits.toArray (new Hit[0]);
+    }
+}
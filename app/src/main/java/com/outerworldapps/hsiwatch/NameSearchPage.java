@@ -0,0 +1,102 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import android.annotation.SuppressLint;
+import android.database.sqlite.SQLiteDatabase;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.Button;
+import android.widget.RadioButton;
+import android.widget.RadioGroup;
+
+/**
+ * Contains a BACK button and waypoints found by name search.
+ */
+public class NameSearchPage {
+    private final static int MAXHITS = 20;
+
+    private MainActivity mainActivity;
+    private RadioGroup hitsGroup;
+    private View hitsPageView;
+
+    public NameSearchPage (MainActivity ma)
+    {
+        mainActivity = ma;
+    }
+
+    /**
+     * Search for waypoints by name and display list to select from.
+     *  Input:
+     *   text = words to search for
+     *   wet = waypoint entry box to put selected waypoint in
+     *  Output:
+     *   returns false: nothing found
+     *            true: page displayed
+     */
+    @SuppressLint("InflateParams")
+    public boolean show (String text, final WayptEditText wet)
+    {
+        final SQLiteDatabase sqldb = mainActivity.downloadThread.getSqlDB ();
+        if (sqldb == null) return false;
+        NameSearch.Hit[] hits = NameSearch.search (sqldb, text, mainActivity.curLoc, MAXHITS);
+        if ((hits == null) || (hits.length == 0)) return false;
+
+        // same layout as the nearest airports page
+        if (hitsPageView == null) {
+            LayoutInflater layoutInflater = mainActivity.getLayoutInflater ();
+            hitsPageView = layoutInflater.inflate (R.layout.near_page, null);
+            Button hitsBackButton = hitsPageView.findViewById (R.id.nearBackButton);
+            hitsBackButton.setOnClickListener (mainActivity.backButtonListener);
+            hitsGroup = hitsPageView.findViewById (R.id.nearGroup);
+        }
+
+        // clicking a button selects that waypoint and goes back to entry page
+        View.OnClickListener radioButtonListener = new View.OnClickListener () {
+            @Override
+            public void onClick (View v)
+            {
+                NameSearch.Hit hit = (NameSearch.Hit) v.getTag ();
+                Waypt waypt = Waypt.find (mainActivity, sqldb, hit.ident, hit);
+                if (waypt != null) {
+                    wet.setText (waypt.ident);
+                    wet.wcl.wayptChanged (waypt);
+                }
+                mainActivity.onBackPressed ();
+            }
+        };
+
+        hitsGroup.removeAllViews ();
+        double magvar = mainActivity.curLoc.magvar;
+        for (NameSearch.Hit hit : hits) {
+            int hdg = ((int) Math.round (Lib.LatLonTC (mainActivity.curLoc.lat, mainActivity.curLoc.lon,
+                    hit.lat, hit.lon) + magvar) + 359) % 360 + 1;
+            RadioButton rb = new RadioButton (mainActivity);
+            rb.setOnClickListener (radioButtonListener);
+            rb.setTag (hit);
+            rb.setText (hit.ident + " " + hdg + "\u00B0 " + Math.round (hit.dist) + " nm: " + hit.name);
+            hitsGroup.addView (rb);
+        }
+
+        mainActivity.showMainPage (hitsPageView);
+        return true;
+    }
+}
@@ -60,6 +60,7 @@ public class NavModeButton {
         modePageView = layoutInflater.inflate (R.layout.mode_page, null);
         identEntry = modePageView.findViewById (R.id.identEntry);
         identDescr = modePageView.findViewById (R.id.identDescr);
+        identEntry.complView = identDescr;
 
         Button voiceButton = modePageView.findViewById (R.id.voiceButton);
         voiceButton.setOnClickListener (new View.OnClickListener () {
@@ -298,6 +299,12 @@ public class NavModeButton {
                 // pretend like those letters and numbers were typed in waypoint ident box
                 identEntry.setText (sb);
                 identEntry.onEnterKey (identEntry);
+            } else if ((results != null) && (results.size () > 0)) {
+
+                // no prowords, maybe they spoke a name like 'Beverly'
+                // pretend like it was typed in so it goes to name search
+                identEntry.setText (results.get (0));
+                identEntry.onEnterKey (identEntry);
             }
         }
     }
@@ -21,10 +21,12 @@
 package com.outerworldapps.hsiwatch;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
@@ -35,13 +37,21 @@ import android.view.View;
 public abstract class OBSDialView extends DialFlickView {
 
     private final static double DIALRATIO = 5.0;
-    private final static float SIMPLESCALE = 1.25F;
+    private final static float CARDRADIUS = 890 + 175 / 2.0F;
+    protected final static float SIMPLESCALE = 1.25F;
 
     protected final static int INNARDSRADIUS = 630;
     protected abstract double getDispMagVar ();
     protected abstract void onDrawInnards (Canvas canvas, double trueup, double scale);
 
+    private Bitmap cardBitmap;                      // OBS card numbers, drawn rotated
+    private Bitmap[] ringBitmaps = new Bitmap[2];   // outer ring and minute dots, [0]=normal, [1]=red
     private boolean firstTime;
+    private boolean ringAmbient;
+    private boolean ringFillChin;
+    private boolean ringTimeDots;
+    private int ringWidth;
+    private int ringHeight;
     private boolean lastAmbient;
     private boolean lastFillChin;
     private boolean lastRedRing;
@@ -52,6 +62,7 @@ public abstract class OBSDialView extends DialFlickView {
     private float chin_y;
     private MainActivity mainActivity;
     private Paint adfNeedlePaint;
+    private Paint bitmapPaint;
     private Paint dialBackPaint;
     private Paint dialTextPaint;
     private Paint dirArrowPaint;
@@ -67,6 +78,7 @@ public abstract class OBSDialView extends DialFlickView {
     private Paint outerRingPaint;
     private Path circleClipPath;
     private Path obsArrowPath;
+    private RectF cardRect;
 
     public OBSDialView (Context ctx, AttributeSet attrs)
     {
@@ -150,6 +162,11 @@ public abstract class OBSDialView extends DialFlickView {
         timeDotPaint = new Paint ();
         timeDotPaint.setStyle (Paint.Style.FILL_AND_STROKE);
 
+        bitmapPaint = new Paint ();
+        bitmapPaint.setFilterBitmap (true);
+
+        cardRect = new RectF (- CARDRADIUS, - CARDRADIUS, CARDRADIUS, CARDRADIUS);
+
         obsArrowPath = new Path ();
         obsArrowPath.moveTo (-71, -518);
         obsArrowPath.lineTo (  0, -624);
@@ -302,49 +319,42 @@ public abstract class OBSDialView extends DialFlickView {
 
         firstTime = false;
 
+        // the outer ring and minute dots only change with these
+        boolean timeDots = (mainActivity != null) && mainActivity.menuMainPage.timeDotsCkBox.isChecked ();
+        int width = getWidth ();
+        int height = getHeight ();
+        float scale = Math.min (width, height) / (1000 * 2 + outerRingPaint.getStrokeWidth ());
+        if ((ringAmbient != ambient) || (ringFillChin != fillChin) || (ringTimeDots != timeDots) ||
+                (ringWidth != width) || (ringHeight != height)) {
+            for (int i = 0; i < 2; i ++) {
+                if (ringBitmaps[i] != null) {
+                    ringBitmaps[i].recycle ();
+                    ringBitmaps[i] = null;
+                }
+            }
+            ringAmbient  = ambient;
+            ringFillChin = fillChin;
+            ringTimeDots = timeDots;
+            ringWidth    = width;
+            ringHeight   = height;
+        }
+        Bitmap ringBitmap = ringBitmaps[redRing?1:0];
+        if ((ringBitmap == null) && (width > 0) && (height > 0)) {
+            ringBitmap = Bitmap.createBitmap (width, height, Bitmap.Config.ARGB_8888);
+            drawRing (new Canvas (ringBitmap), width, height, scale, fillChin, timeDots);
+            ringBitmaps[redRing?1:0] = ringBitmap;
+        }
+        if (ringBitmap != null) canvas.drawBitmap (ringBitmap, 0, 0, null);
+
         canvas.save ();
         try {
 
             // set up translation/scaling so that outer ring is radius 1000 centered at 0,0
-            float width = getWidth ();
-            float height = getHeight ();
-            float scale = Math.min (width, height) / (1000 * 2 + outerRingPaint.getStrokeWidth ());
-            canvas.translate (width / 2, height / 2);
+            canvas.translate (width / 2.0F, height / 2.0F);
             canvas.scale (scale, scale);
 
-            // draw outer ring - maybe it is flashing red
-            canvas.drawCircle (0, 0, 1000, outerRingPaint);
-
             // maybe draw time dots on outer ring
-            if ((mainActivity != null) && mainActivity.menuMainPage.timeDotsCkBox.isChecked ()) {
-
-                // if fill chin mode, see where outer ring is chopped off
-                // it's at approximately 5o'clock to 7o'clock
-                if (mainActivity.menuMainPage.fillChinCkBox.isChecked ()) {
-
-                    // draw flattened outer ring
-                    // chin_x,_y = flattened endpoints of center of outer ring line
-                    canvas.drawLine (chin_x, chin_y, - chin_x, chin_y, outerRingPaint);
-                }
-
-                // draw minute dots
-                // solid grayscale if normal, open grayscale if ambient
-                timeDotPaint.setStyle (lastAmbient ? Paint.Style.STROKE : Paint.Style.FILL_AND_STROKE);
-                for (int i = 0; i < 60; i ++) {
-                    if (i == 0) {
-                        drawTimeDot (canvas, 25, 0.0, Color.WHITE);
-                        continue;
-                    }
-                    if (i % 15 == 0) {
-                        drawTimeDot (canvas, 25, i / 60.0, Color.LTGRAY);
-                        continue;
-                    }
-                    if (i % 5 == 0) {
-                        drawTimeDot (canvas, 25, i / 60.0, Color.GRAY);
-                        continue;
-                    }
-                    drawTimeDot (canvas, 15, i / 60.0, Color.BLACK);
-                }
+            if (timeDots) {
 
                 // draw current time dots
                 // colored if normal, grayscale if ambient
@@ -377,8 +387,7 @@ public abstract class OBSDialView extends DialFlickView {
             try {
                 canvas.clipPath (circleClipPath);
                 canvas.scale (SIMPLESCALE, SIMPLESCALE);
-                scale *= SIMPLESCALE;
-                onDrawInnards (canvas, trueup, scale);
+                onDrawInnards (canvas, trueup, scale * SIMPLESCALE);
             } finally {
                 canvas.restore ();
             }
@@ -387,11 +396,20 @@ public abstract class OBSDialView extends DialFlickView {
             canvas.rotate ((float) -magvar);
 
             // draw OBS dial with "0" at top
-            canvas.drawCircle (0, 0, 890, obsBackPaint);
-            for (int deg = 0; deg < 360; deg += 30) {
-                canvas.drawText (Integer.toString (deg), 0, -823, dialTextPaint);
-                canvas.rotate (30);
+            int cardsize = (int) Math.ceil (CARDRADIUS * 2.0F * scale);
+            if (((cardBitmap == null) || (cardBitmap.getWidth () != cardsize)) && (cardsize > 0)) {
+                if (cardBitmap != null) cardBitmap.recycle ();
+                cardBitmap = Bitmap.createBitmap (cardsize, cardsize, Bitmap.Config.ARGB_8888);
+                Canvas cardCanvas = new Canvas (cardBitmap);
+                cardCanvas.translate (cardsize / 2.0F, cardsize / 2.0F);
+                cardCanvas.scale (scale, scale);
+                cardCanvas.drawCircle (0, 0, 890, obsBackPaint);
+                for (int deg = 0; deg < 360; deg += 30) {
+                    cardCanvas.drawText (Integer.toString (deg), 0, -823, dialTextPaint);
+                    cardCanvas.rotate (30);
+                }
             }
+            if (cardBitmap != null) canvas.drawBitmap (cardBitmap, null, cardRect, bitmapPaint);
 
             // draw obs triangle
             canvas.save ();
@@ -420,6 +438,49 @@ public abstract class OBSDialView extends DialFlickView {
         super.onDraw (canvas);
     }
 
+    // draw outer ring and minute dots to bitmap
+    // they are redrawn only when ambient, red ring, fill chin, time dots or size change
+    private void drawRing (Canvas canvas, int width, int height, float scale, boolean fillChin, boolean timeDots)
+    {
+        canvas.translate (width / 2.0F, height / 2.0F);
+        canvas.scale (scale, scale);
+
+        // draw outer ring - maybe it is flashing red
+        canvas.drawCircle (0, 0, 1000, outerRingPaint);
+
+        // maybe draw time dots on outer ring
+        if (timeDots) {
+
+            // if fill chin mode, see where outer ring is chopped off
+            // it's at approximately 5o'clock to 7o'clock
+            if (fillChin) {
+
+                // draw flattened outer ring
+                // chin_x,_y = flattened endpoints of center of outer ring line
+                canvas.drawLine (chin_x, chin_y, - chin_x, chin_y, outerRingPaint);
+            }
+
+            // draw minute dots
+            // solid grayscale if normal, open grayscale if ambient
+            timeDotPaint.setStyle (lastAmbient ? Paint.Style.STROKE : Paint.Style.FILL_AND_STROKE);
+            for (int i = 0; i < 60; i ++) {
+                if (i == 0) {
+                    drawTimeDot (canvas, 25, 0.0, Color.WHITE);
+                    continue;
+                }
+                if (i % 15 == 0) {
+                    drawTimeDot (canvas, 25, i / 60.0, Color.LTGRAY);
+                    continue;
+                }
+                if (i % 5 == 0) {
+                    drawTimeDot (canvas, 25, i / 60.0, Color.GRAY);
+                    continue;
+                }
+                drawTimeDot (canvas, 15, i / 60.0, Color.BLACK);
+            }
+        }
+    }
+
     // draw time dot on top of the outer ring
     //  input:
     //   canvas = what to draw dot on
@@ -20,6 +20,9 @@
 
 package com.outerworldapps.hsiwatch;
 
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
@@ -29,15 +32,19 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.PriorityQueue;
 
 /**
  * Single instance contains all the street map tiles for the whole world.
@@ -48,16 +55,47 @@ public class OpenStreetMap {
     public  final static int BitmapSize = 256;  // all OSM tiles are this size
     public  final static int MAXZOOM = 17;
     private final static int LOG2PIXPERIN = 8;
+    private final static int NDOWNLOADERS = 3;
     private final static long TILE_FILE_AGE_MS = 1000L*60*60*24*365;
+    public  final static int DEFQUOTAMB = 256;  // default tile pack quota
     private final static String copyrtMessage = "\u00A9 OpenStreetMap contributors";
 
+    // opened tile cache statistics
+    private static int cacheHits;
+    private static int cacheMisses;
+    private static int cacheDecodes;
+    private static int cacheEvicts;
+    private static long cacheBytes;
+    private static int poolReuses;
+
+    // recycled tile bitmaps ready to be decoded into again
+    private final static int POOLSIZE = 8;
+    private final static ArrayList<Bitmap> bitmapPool = new ArrayList<> (POOLSIZE);
+
     private MainActivity mainActivity;
     private MainTileDrawer mainTileDrawer;
+    private TilePack tilePack;
 
     public OpenStreetMap (MainActivity ma)
     {
         mainActivity = ma;
-        mainTileDrawer = new MainTileDrawer ();
+        tilePack = new TilePack (new File (ma.getNoBackupFilesDir (), "streets"));
+        SharedPreferences prefs = ma.getPreferences (Context.MODE_PRIVATE);
+        tilePack.setQuota (prefs.getInt ("tileQuotaMB", DEFQUOTAMB) * 1024L * 1024L);
+
+        // keep decoded tiles up to an eighth of the app's heap
+        ActivityManager am = (ActivityManager) ma.getSystemService (Context.ACTIVITY_SERVICE);
+        long budget = am.getMemoryClass () * 1024L * 1024L / 8;
+        mainTileDrawer = new MainTileDrawer (budget);
+    }
+
+    /**
+     * Get opened tile cache statistics for display.
+     */
+    public static String getCacheStats ()
+    {
+        return String.format (Locale.US, "hits=%d misses=%d decodes=%d evicts=%d reuses=%d kb=%d",
+                cacheHits, cacheMisses, cacheDecodes, cacheEvicts, poolReuses, cacheBytes / 1024);
     }
 
     /**
@@ -94,20 +132,27 @@ public class OpenStreetMap {
         private Canvas canvas;
         private float[] bitmappts = new float[8];
         private Invalidatable redrawView;
+        private float[] matrixvals = new float[9];
         private Matrix matrix = new Matrix ();
         private Paint copyrtBGPaint = new Paint ();
         private Paint copyrtTxPaint = new Paint ();
         private Path canvasclip = new Path ();
 
-        private final HashMap<Long,TileBitmap> openedBitmaps = new HashMap<> ();
+        private final TileCache openedBitmaps;
         private final HashMap<Long,TileBitmap> neededBitmaps = new HashMap<> ();
+        private final PriorityQueue<TileBitmap> neededQueue = new PriorityQueue<> ();
         private TileOpenerThread tileOpenerThread;
 
-        private final HashMap<Long,Invalidatable> downloadBitmaps = new HashMap<> ();
-        private TileDownloaderThread tileDownloaderThread;
+        private final HashMap<Long,TileRequest> downloadBitmaps = new HashMap<> ();
+        private final PriorityQueue<TileRequest> downloadQueue = new PriorityQueue<> ();
+        private final ArrayList<TileDownloaderThread> tileDownloaderThreads = new ArrayList<> (NDOWNLOADERS);
+        private double centerX, centerY;
+        private double halfWidth, halfHeight;
+        private int frameNum;
 
-        public MainTileDrawer ()
+        public MainTileDrawer (long budget)
         {
+            openedBitmaps = new TileCache (budget);
             copyrtBGPaint.setColor (Color.WHITE);
             copyrtBGPaint.setStyle (Paint.Style.FILL_AND_STROKE);
             copyrtBGPaint.setTextAlign (Paint.Align.CENTER);
@@ -119,8 +164,14 @@ public class OpenStreetMap {
         {
             redrawView = inval;
             this.canvas = canvas;
-
-            stopReadingTiles (false);
+            PointD center = northwestcanpix;
+            pmap.LatLon2CanPixAprox ((pmap.canvasNorthLat + pmap.canvasSouthLat) / 2.0,
+                    (pmap.canvasEastLon + pmap.canvasWestLon) / 2.0, center);
+            centerX = center.x;
+            centerY = center.y;
+            halfWidth  = pmap.canvasWidth  / 2.0;
+            halfHeight = pmap.canvasHeight / 2.0;
+            frameNum ++;
 
             synchronized (openedBitmaps) {
                 for (TileBitmap tbm : openedBitmaps.values ()) {
@@ -136,12 +187,26 @@ public class OpenStreetMap {
                 canvas.drawTextOnPath (copyrtMessage, pmap.copyrtPath, 0, 0, copyrtTxPaint);
             }
 
+            // unused tiles stay around for next frame unless over budget
+            // forget about opening tiles no longer on screen
             synchronized (openedBitmaps) {
-                for (Iterator<TileBitmap> it = openedBitmaps.values ().iterator (); it.hasNext ();) {
+                openedBitmaps.trim ();
+                for (Iterator<TileBitmap> it = neededQueue.iterator (); it.hasNext ();) {
                     TileBitmap tbm = it.next ();
-                    if (! tbm.used) {
+                    if (tbm.frame != frameNum) {
                         it.remove ();
-                        if (tbm.bm != null) tbm.bm.recycle ();
+                        neededBitmaps.remove (tbm.key);
+                    }
+                }
+            }
+
+            // cancel downloads for tiles no longer on screen
+            synchronized (downloadBitmaps) {
+                for (Iterator<TileRequest> it = downloadQueue.iterator (); it.hasNext ();) {
+                    TileRequest req = it.next ();
+                    if (req.frame != frameNum) {
+                        it.remove ();
+                        downloadBitmaps.remove (req.key);
                     }
                 }
             }
@@ -182,14 +247,27 @@ public class OpenStreetMap {
 
                 // see if we have the exact tile requested already opened and ready to display
                 tbm = openedBitmaps.get (key);
+                if (tbm != null) cacheHits ++;
+                else if (startDownload) cacheMisses ++;
                 if (tbm == null) {
 
                     // if not, request only if it is the most zoomed-in level
                     // the TileOpenerThread will open an outer-zoom level if the zoomed-in one is not downloaded
-                    if (startDownload) {
-                        tbm = new TileBitmap ();
+                    // if it is already being downloaded, just keep the download going
+                    // if it was requested in an earlier frame, keep that request with updated priority
+                    if (startDownload && ! keepDownloading (key)) {
+                        tbm = neededBitmaps.get (key);
+                        if (tbm == null) {
+                            tbm = new TileBitmap ();
+                            tbm.key = key;
+                            neededBitmaps.put (key, tbm);
+                        } else {
+                            neededQueue.remove (tbm);
+                        }
                         tbm.inval = redrawView;
-                        neededBitmaps.put (key, tbm);
+                        tbm.frame = frameNum;
+                        tbm.priority = tilePriority ();
+                        neededQueue.add (tbm);
                         if (tileOpenerThread == null) {
                             tileOpenerThread = new TileOpenerThread ();
                             tileOpenerThread.start ();
@@ -197,11 +275,11 @@ public class OpenStreetMap {
                     }
                     return false;
                 }
-            }
 
-            // it is opened, remember it is being used so it doesn't get recycled
-            // also it might be null meaning the bitmap file is corrupt
-            tbm.used = true;
+                // it is opened, remember it is being used so it doesn't get recycled
+                // also it might be null meaning the bitmap file is corrupt
+                tbm.used = true;
+            }
             Bitmap tile = tbm.bm;
             if (tile == null) return false;
 
@@ -243,9 +321,28 @@ public class OpenStreetMap {
 
                 /*
                  * Draw the bitmap to the canvas using that transformation.
+                 * If canvas spot is a parallelogram, the matrix can be filled in directly.
                  */
-                if (!matrix.setPolyToPoly (bitmappts, 0, canvaspts, 0, 4)) {
-                    return false;  // maybe zoomed in too far so ww or hh is zero
+                if ((ww == 0) || (hh == 0)) {
+                    return false;  // maybe zoomed in too far
+                }
+                if (affine) {
+                    float sx = (canvaspts[2] - canvaspts[0]) / ww;
+                    float kx = (canvaspts[6] - canvaspts[0]) / hh;
+                    float ky = (canvaspts[3] - canvaspts[1]) / ww;
+                    float sy = (canvaspts[7] - canvaspts[1]) / hh;
+                    matrixvals[Matrix.MSCALE_X] = sx;
+                    matrixvals[Matrix.MSKEW_X]  = kx;
+                    matrixvals[Matrix.MTRANS_X] = canvaspts[0] - sx * leftBmp - kx * topBmp;
+                    matrixvals[Matrix.MSKEW_Y]  = ky;
+                    matrixvals[Matrix.MSCALE_Y] = sy;
+                    matrixvals[Matrix.MTRANS_Y] = canvaspts[1] - ky * leftBmp - sy * topBmp;
+                    matrixvals[Matrix.MPERSP_0] = 0.0F;
+                    matrixvals[Matrix.MPERSP_1] = 0.0F;
+                    matrixvals[Matrix.MPERSP_2] = 1.0F;
+                    matrix.setValues (matrixvals);
+                } else if (!matrix.setPolyToPoly (bitmappts, 0, canvaspts, 0, 4)) {
+                    return false;
                 }
                 canvas.drawBitmap (tile, matrix, null);
             } finally {
@@ -260,10 +357,7 @@ public class OpenStreetMap {
             redrawView = null;
             stopReadingTiles (true);
             synchronized (openedBitmaps) {
-                for (TileBitmap tbm : openedBitmaps.values ()) {
-                    if (tbm.bm != null) tbm.bm.recycle ();
-                }
-                openedBitmaps.clear ();
+                openedBitmaps.removeAll ();
             }
         }
 
@@ -272,17 +366,77 @@ public class OpenStreetMap {
             Thread t;
             synchronized (openedBitmaps) {
                 neededBitmaps.clear ();
+                neededQueue.clear ();
                 t = tileOpenerThread;
             }
             if (wait && (t != null)) {
                 try { t.join (); } catch (InterruptedException ignored) { }
             }
+            if (wait) {
+                TileDownloaderThread[] ts;
+                synchronized (downloadBitmaps) {
+                    downloadQueue.clear ();
+                    downloadBitmaps.clear ();
+                    ts = tileDownloaderThreads.toArray (new TileDownloaderThread[0]);
+                }
+                for (TileDownloaderThread td : ts) {
+                    try { td.join (); } catch (InterruptedException ignored) { }
+                }
+            }
+        }
+
+        // get priority of tile currently being drawn, lower is more important
+        // it is the distance of its center from the canvas center in canvas pixels,
+        // scaled up by how much of its bounding box is off the canvas
+        private double tilePriority ()
+        {
+            float minx = Math.min (Math.min (canvaspts[0], canvaspts[2]), Math.min (canvaspts[4], canvaspts[6]));
+            float maxx = Math.max (Math.max (canvaspts[0], canvaspts[2]), Math.max (canvaspts[4], canvaspts[6]));
+            float miny = Math.min (Math.min (canvaspts[1], canvaspts[3]), Math.min (canvaspts[5], canvaspts[7]));
+            float maxy = Math.max (Math.max (canvaspts[1], canvaspts[3]), Math.max (canvaspts[5], canvaspts[7]));
+            double area = (double) (maxx - minx) * (maxy - miny);
+            double visw = Math.min (maxx, centerX + halfWidth)  - Math.max (minx, centerX - halfWidth);
+            double vish = Math.min (maxy, centerY + halfHeight) - Math.max (miny, centerY - halfHeight);
+            double visarea = Math.max (visw, 1.0) * Math.max (vish, 1.0);
+            double dist = Math.hypot ((minx + maxx) / 2.0 - centerX, (miny + maxy) / 2.0 - centerY);
+            return (dist + 1.0) * Math.max (area / visarea, 1.0);
+        }
+
+        // if tile is queued for download, mark it still wanted and update its priority
+        //  returns false: not queued, true: queued or being downloaded
+        private boolean keepDownloading (long key)
+        {
             synchronized (downloadBitmaps) {
-                downloadBitmaps.clear ();
-                t = tileDownloaderThread;
+                TileRequest req = downloadBitmaps.get (key);
+                if (req == null) return false;
+                if (! req.inflight) {
+                    downloadQueue.remove (req);
+                    req.frame = frameNum;
+                    req.priority = tilePriority ();
+                    downloadQueue.add (req);
+                }
+                return true;
             }
-            if (wait && (t != null)) {
-                try { t.join (); } catch (InterruptedException ignored) { }
+        }
+
+        // queue tile to be downloaded, start another downloader thread if needed
+        private void queueDownload (long key, TileBitmap tbm)
+        {
+            synchronized (downloadBitmaps) {
+                if (downloadBitmaps.containsKey (key)) return;
+                TileRequest req = new TileRequest ();
+                req.key = key;
+                req.inval = tbm.inval;
+                req.priority = tbm.priority;
+                req.frame = frameNum;
+                downloadBitmaps.put (key, req);
+                downloadQueue.add (req);
+                if ((tileDownloaderThreads.size () < NDOWNLOADERS) &&
+                        (tileDownloaderThreads.size () < downloadQueue.size ())) {
+                    TileDownloaderThread td = new TileDownloaderThread ();
+                    tileDownloaderThreads.add (td);
+                    td.start ();
+                }
             }
         }
 
@@ -305,31 +459,39 @@ public class OpenStreetMap {
                     // if nothing to dequeue, terminate thread
                     synchronized (openedBitmaps) {
                         if (tbm != null) {
-                            openedBitmaps.put (key, tbm);
+                            openedBitmaps.add (key, tbm);
                             tbm.inval.postInvalidate ();
                         }
-                        Iterator<Long> it = neededBitmaps.keySet ().iterator ();
                         do {
-                            if (! it.hasNext ()) {
+                            tbm = neededQueue.poll ();
+                            if (tbm == null) {
                                 tileOpenerThread = null;
                                 return;
                             }
-                            key = it.next ();
-                            tbm = neededBitmaps.get (key);
-                            assert tbm != null;
-                            it.remove ();
+                            key = tbm.key;
+                            neededBitmaps.remove (key);
                         } while (openedBitmaps.containsKey (key));
                     }
 
                     // open the requested tile or one at an outer zoom level
                     // do not request any tile be downloaded from server yet
+                    // don't bother re-reading an outer tile that is already open
                     int tileIX = (int) (key >> 36) & 0x0FFFFFFF;
                     int tileIY = (int) (key >>  8) & 0x0FFFFFFF;
                     int zoomLevel = (int) key & 0xFF;
                     int zl;
                     for (zl = zoomLevel; zl >= 0; -- zl) {
+                        if (zl < zoomLevel) {
+                            long outkey = (((long) tileIX) << 36) | (((long) tileIY) << 8) | zl;
+                            synchronized (openedBitmaps) {
+                                if (openedBitmaps.containsKey (outkey)) break;
+                            }
+                        }
                         tbm.bm = ReadTileBitmap (tileIX, tileIY, zl, false);
-                        if (tbm.bm != null) break;
+                        if (tbm.bm != null) {
+                            cacheDecodes ++;
+                            break;
+                        }
                         tileIX /= 2;
                         tileIY /= 2;
                     }
@@ -337,61 +499,241 @@ public class OpenStreetMap {
                     // if an outer tile was found, ie, the inner tile not found on flash,
                     // request that it be downloaded from server
                     if (zl < zoomLevel) {
-                        synchronized (downloadBitmaps) {
-                            downloadBitmaps.put (key, tbm.inval);
-                            if (tileDownloaderThread == null) {
-                                tileDownloaderThread = new TileDownloaderThread ();
-                                tileDownloaderThread.start ();
-                            }
-                        }
+                        queueDownload (key, tbm);
                     }
 
                     // mark the possibly zoomed-out tile as now being opened
                     // and prevent it from being recycled right away
-                    if (zl < 0) {
+                    if ((zl < 0) || (tbm.bm == null)) {
                         tbm = null;
                     } else {
                         key = (((long) tileIX) << 36) | (((long) tileIY) << 8) | zl;
+                        tbm.key = key;
                         tbm.used = true;
                     }
                 }
             }
         }
 
+        /**
+         * One of several threads that download tiles from downloadQueue, most important first.
+         * Tile stays in downloadBitmaps while being downloaded so it doesn't get queued again.
+         */
         private class TileDownloaderThread extends Thread {
             @Override
             public void run ()
             {
                 setName ("OpenStreetMap tile downloader");
                 while (true) {
-                    long key;
-                    Invalidatable inval;
+                    TileRequest req;
                     synchronized (downloadBitmaps) {
-                        Iterator<Long> it = downloadBitmaps.keySet ().iterator ();
-                        if (! it.hasNext ()) {
-                            tileDownloaderThread = null;
+                        req = downloadQueue.poll ();
+                        if (req == null) {
+                            tileDownloaderThreads.remove (this);
                             return;
                         }
-                        key = it.next ();
-                        inval = downloadBitmaps.get (key);
-                        assert inval != null;
-                        it.remove ();
+                        req.inflight = true;
                     }
 
+                    long key = req.key;
                     int tileIX = (int) (key >> 36) & 0x0FFFFFFF;
                     int tileIY = (int) (key >>  8) & 0x0FFFFFFF;
                     int zoomLevel = (int) key & 0xFF;
                     DownloadTileBitmap (tileIX, tileIY, zoomLevel, true);
-                    inval.postInvalidate ();
+
+                    synchronized (downloadBitmaps) {
+                        if (downloadBitmaps.get (key) == req) downloadBitmaps.remove (key);
+                    }
+                    req.inval.postInvalidate ();
                 }
             }
         }
     }
 
-    private static class TileBitmap {
+    private static class TileBitmap implements Comparable<TileBitmap> {
         public Invalidatable inval;     // callback when tile gets loaded
         public Bitmap bm;               // bitmap (or null if not on flash or corrupt)
         public boolean used;            // it was used this cycle, don't recycle
+        public double priority;         // distance from canvas center when requested
+        public int frame;               // last frame tile was needed for
+        public long key;
+
+        // most important tile gets opened first
+        @Override
+        public int compareTo (TileBitmap o)
+        {
+            return Double.compare (priority, o.priority);
+        }
+
+        public int getBytes ()
+        {
+            return (bm == null) ? 0 : bm.getAllocationByteCount ();
+        }
+    }
+
+    // tile queued for downloading
+    private static class TileRequest implements Comparable<TileRequest> {
+        public Invalidatable inval;     // callback when tile gets downloaded
+        public boolean inflight;        // being downloaded now
+        public double priority;         // distance from canvas center, lower goes first
+        public int frame;               // last frame tile was needed for
+        public long key;
+
+        // closest to center first, then coarser zoom as it covers more
+        @Override
+        public int compareTo (TileRequest o)
+        {
+            int c = Double.compare (priority, o.priority);
+            if (c == 0) c = Integer.compare ((int) key & 0xFF, (int) o.key & 0xFF);
+            return c;
+        }
+    }
+
+    /**
+     * Opened tiles, least recently drawn first.
+     * Tiles are only recycled when the decoded bytes go over budget,
+     * so panning and zooming back and forth doesn't re-read them from flash.
+     * Caller must lock the cache.
+     */
+    private static class TileCache extends LinkedHashMap<Long,TileBitmap> {
+        private long budget;
+
+        public TileCache (long budget)
+        {
+            super (64, 0.75F, true);
+            this.budget = budget;
+        }
+
+        // add newly opened tile
+        // if already opened by an earlier request, keep that one as it may be being drawn
+        // doesn't trim, Draw() does that at end of frame when it knows what tiles it used
+        public void add (long key, TileBitmap tbm)
+        {
+            if (containsKey (key)) {
+                if (tbm.bm != null) releaseBitmap (tbm.bm);
+                return;
+            }
+            put (key, tbm);
+            cacheBytes += tbm.getBytes ();
+        }
+
+        // recycle least recently drawn tiles until under budget
+        // never recycle tiles drawn in the current frame
+        // called only by Draw() in the gui thread
+        public void trim ()
+        {
+            for (Iterator<TileBitmap> it = values ().iterator (); (cacheBytes > budget) && it.hasNext ();) {
+                TileBitmap tbm = it.next ();
+                if (! tbm.used) {
+                    it.remove ();
+                    evict (tbm);
+                    cacheEvicts ++;
+                }
+            }
+        }
+
+        // recycle all tiles
+        public void removeAll ()
+        {
+            for (TileBitmap tbm : values ()) evict (tbm);
+            clear ();
+        }
+
+        private static void evict (TileBitmap tbm)
+        {
+            cacheBytes -= tbm.getBytes ();
+            if (tbm.bm != null) releaseBitmap (tbm.bm);
+        }
+    }
+
+    // get a bitmap from the pool to decode a tile into
+    // returns null if pool empty
+    private static Bitmap acquireBitmap ()
+    {
+        synchronized (bitmapPool) {
+            int n = bitmapPool.size ();
+            return (n == 0) ? null : bitmapPool.remove (n - 1);
+        }
+    }
+
+    // put a tile bitmap in the pool so its memory can be used for another tile
+    // recycle it if the pool is full
+    private static void releaseBitmap (Bitmap bm)
+    {
+        synchronized (bitmapPool) {
+            if (bm.isMutable () && (bitmapPool.size () < POOLSIZE)) {
+                bitmapPool.add (bm);
+                return;
+            }
+        }
+        bm.recycle ();
+    }
+
+    /**
+     * Get keys of tiles at the given zoom level covering a lat/lon box.
+     */
+    public static void GetTileKeys (double southLat, double northLat, double westLon, double eastLon,
+                                    int zoom, Collection<Long> keys)
+    {
+        PixelMapper pmap = new PixelMapper () {
+            @Override
+            public void LatLon2CanPixAprox (double lat, double lon, PointD pix)
+            { }
+        };
+        pmap.canvasNorthLat = northLat;
+        pmap.canvasSouthLat = southLat;
+        pmap.canvasEastLon  = eastLon;
+        pmap.canvasWestLon  = westLon;
+        KeyCollector kc = new KeyCollector ();
+        kc.keys = keys;
+        kc.zoom = zoom;
+        kc.DrawTiles (pmap);
+    }
+
+    /**
+     * Get zoom level that Draw() would use for the given area.
+     */
+    public static int GetZoom (PixelMapper pmap)
+    {
+        KeyCollector kc = new KeyCollector ();
+        kc.ComputeZoom (pmap);
+        return kc.zoom;
+    }
+
+    /**
+     * Set maximum megabytes of tiles to keep on flash.
+     */
+    public void SetTileQuota (int megabytes)
+    {
+        tilePack.setQuota (megabytes * 1024L * 1024L);
+    }
+
+    /**
+     * Get number of bytes of tiles on flash.
+     */
+    public long GetTileBytes ()
+    {
+        return tilePack.getLiveBytes ();
+    }
+
+    /**
+     * Get number of bytes a tile takes in the tile pack.
+     * @return 0 if not in pack
+     */
+    public int GetTileSize (long key)
+    {
+        return tilePack.getLength (key);
+    }
+
+    private static class KeyCollector extends TileDrawer {
+        public Collection<Long> keys;
+
+        @Override  // TileDrawer
+        public boolean DrawTile ()
+        {
+            keys.add (((long) tileX << 36) | ((long) tileY << 8) | zoom);
+            return false;
+        }
     }
 
     /**
@@ -399,6 +741,9 @@ public class OpenStreetMap {
      * It does a callback to DrawTile() for each tile needed.
      */
     private abstract static class TileDrawer {
+        private final static double AFFINEERRPIX = 1.5;  // max canvas pixel error allowed using affine transform
+
+        protected boolean affine;   // canvaspts came from affine transform so tile is a parallelogram
         protected float[] canvaspts = new float[8];
         protected int tileX, tileY, zoom;
         protected PointD northwestcanpix = new PointD ();
@@ -470,20 +815,51 @@ public class OpenStreetMap {
             /*
              * See what range of tile numbers are needed to cover the canvas.
              */
-            int maxTileY = (int) lat2TileY (pmap.canvasSouthLat);
-            int minTileY = (int) lat2TileY (pmap.canvasNorthLat);
-            int minTileX = (int) lon2TileX (pmap.canvasWestLon);
-            int maxTileX = (int) lon2TileX (pmap.canvasEastLon);
+            double northTileY = lat2TileY (pmap.canvasNorthLat);
+            double southTileY = lat2TileY (pmap.canvasSouthLat);
+            double westTileX  = lon2TileX (pmap.canvasWestLon);
+            double eastTileX  = lon2TileX (pmap.canvasEastLon);
+            int maxTileY = (int) southTileY;
+            int minTileY = (int) northTileY;
+            int minTileX = (int) westTileX;
+            int maxTileX = (int) eastTileX;
+
+            /*
+             * Over a small area the tile grid maps to the canvas almost linearly.
+             * So find canvas pixel for fractional tile number x,y as
+             *   canpix.x = dxdtx * tx + dxdty * ty + x0
+             *   canpix.y = dydtx * tx + dydty * ty + y0
+             * by projecting the middle of each edge of the canvas area,
+             * then check it against the corners and middle.
+             * If it's close enough, use it for all the tiles instead of projecting each corner.
+             */
+            double midTileX = (westTileX + eastTileX) / 2.0;
+            double midTileY = (northTileY + southTileY) / 2.0;
+            pmap.LatLon2CanPixAprox (tileY2Lat (midTileY), tileX2Lon (westTileX), northwestcanpix);
+            pmap.LatLon2CanPixAprox (tileY2Lat (midTileY), tileX2Lon (eastTileX), northeastcanpix);
+            pmap.LatLon2CanPixAprox (tileY2Lat (northTileY), tileX2Lon (midTileX), southwestcanpix);
+            pmap.LatLon2CanPixAprox (tileY2Lat (southTileY), tileX2Lon (midTileX), southeastcanpix);
+            double dxdtx = (northeastcanpix.x - northwestcanpix.x) / (eastTileX - westTileX);
+            double dydtx = (northeastcanpix.y - northwestcanpix.y) / (eastTileX - westTileX);
+            double dxdty = (southeastcanpix.x - southwestcanpix.x) / (southTileY - northTileY);
+            double dydty = (southeastcanpix.y - southwestcanpix.y) / (southTileY - northTileY);
+            double x0 = (northwestcanpix.x + northeastcanpix.x) / 2.0 - dxdtx * midTileX - dxdty * midTileY;
+            double y0 = (northwestcanpix.y + northeastcanpix.y) / 2.0 - dydtx * midTileX - dydty * midTileY;
+            affine = ! Double.isNaN (x0 + y0);
+            for (int i = 0; affine && (i < 5); i ++) {
+                double tx = (i == 4) ? midTileX : ((i & 1) == 0) ? westTileX : eastTileX;
+                double ty = (i == 4) ? midTileY : ((i & 2) == 0) ? northTileY : southTileY;
+                pmap.LatLon2CanPixAprox (tileY2Lat (ty), tileX2Lon (tx), northwestcanpix);
+                double ex = dxdtx * tx + dxdty * ty + x0 - northwestcanpix.x;
+                double ey = dydtx * tx + dydty * ty + y0 - northwestcanpix.y;
+                affine = Math.hypot (ex, ey) <= AFFINEERRPIX;
+            }
 
             /*
              * Loop through all the possible tiles to cover the canvas.
              */
             for (tileY = minTileY; tileY <= maxTileY; tileY ++) {
-                double northlat = tileY2Lat (tileY);
-                double southlat = tileY2Lat (tileY + 1);
                 for (int rawTileX = minTileX; rawTileX <= maxTileX; rawTileX ++) {
-                    double westlon = tileX2Lon (rawTileX);
-                    double eastlon = tileX2Lon (rawTileX + 1);
                     tileX = rawTileX & ((1 << zoom) - 1);
 
                     /*
@@ -491,10 +867,25 @@ public class OpenStreetMap {
                      * It's quite possible that some of the bitmap is off the canvas.
                      * It's also quite possible that it is flipped around on the canvas.
                      */
-                    pmap.LatLon2CanPixAprox (northlat, westlon, northwestcanpix);
-                    pmap.LatLon2CanPixAprox (northlat, eastlon, northeastcanpix);
-                    pmap.LatLon2CanPixAprox (southlat, westlon, southwestcanpix);
-                    pmap.LatLon2CanPixAprox (southlat, eastlon, southeastcanpix);
+                    if (affine) {
+                        northwestcanpix.x = dxdtx * rawTileX + dxdty * tileY + x0;
+                        northwestcanpix.y = dydtx * rawTileX + dydty * tileY + y0;
+                        northeastcanpix.x = northwestcanpix.x + dxdtx;
+                        northeastcanpix.y = northwestcanpix.y + dydtx;
+                        southwestcanpix.x = northwestcanpix.x + dxdty;
+                        southwestcanpix.y = northwestcanpix.y + dydty;
+                        southeastcanpix.x = northeastcanpix.x + dxdty;
+                        southeastcanpix.y = northeastcanpix.y + dydty;
+                    } else {
+                        double northlat = tileY2Lat (tileY);
+                        double southlat = tileY2Lat (tileY + 1);
+                        double westlon  = tileX2Lon (rawTileX);
+                        double eastlon  = tileX2Lon (rawTileX + 1);
+                        pmap.LatLon2CanPixAprox (northlat, westlon, northwestcanpix);
+                        pmap.LatLon2CanPixAprox (northlat, eastlon, northeastcanpix);
+                        pmap.LatLon2CanPixAprox (southlat, westlon, southwestcanpix);
+                        pmap.LatLon2CanPixAprox (southlat, eastlon, southeastcanpix);
+                    }
 
                     /*
                      * At least some part of tile is on canvas, draw it.
@@ -528,12 +919,12 @@ public class OpenStreetMap {
             double latrad = Math.toRadians (lat);
             return n * (1.0 - (Math.log (Math.tan (latrad) + 1.0 / Math.cos (latrad)) / Math.PI)) / 2.0;
         }
-        private double tileX2Lon (int xTile)
+        private double tileX2Lon (double xTile)
         {
             double n = 1 << zoom;
             return xTile * 360.0 / n - 180.0;
         }
-        private double tileY2Lat (int yTile)
+        private double tileY2Lat (double yTile)
         {
             double n = 1 << zoom;
             return Math.toDegrees (Math.atan (Math.sinh (Math.PI * (1.0 - 2.0 * yTile / n))));
@@ -541,49 +932,82 @@ public class OpenStreetMap {
     }
 
     /**
-     * Synchronously read a tile's bitmap file.
+     * Synchronously read a tile's bitmap from the tile pack.
      * Maybe download from server if we don't have it on flash.
      */
     public Bitmap ReadTileBitmap (int tileIX, int tileIY, int zoomLevel, boolean download)
     {
-        File permfile = DownloadTileBitmap (tileIX, tileIY, zoomLevel, download);
-        if (permfile == null) return null;
+        long key = ((long) tileIX << 36) | ((long) tileIY << 8) | zoomLevel;
+        if (download) DownloadTileBitmap (tileIX, tileIY, zoomLevel, true);
+        TilePack.Tile tile = tilePack.read (key);
+        if (tile == null) return null;
         try {
 
             /*
-             * Read flash file into memorie.
+             * Decode into a pooled bitmap if there is one.
              */
-            Bitmap bm = BitmapFactory.decodeFile (permfile.getAbsolutePath ());
-            if (bm == null) throw new IOException ("bitmap corrupt");
+            BitmapFactory.Options opts = new BitmapFactory.Options ();
+            opts.inMutable = true;
+            opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            opts.inBitmap = acquireBitmap ();
+            Bitmap bm;
+            try {
+                bm = BitmapFactory.decodeByteArray (tile.data, tile.offset, tile.length, opts);
+            } catch (IllegalArgumentException iae) {
+                // pooled bitmap not usable for this file, decode into a new one
+                releaseBitmap (opts.inBitmap);
+                opts.inBitmap = null;
+                bm = BitmapFactory.decodeByteArray (tile.data, tile.offset, tile.length, opts);
+            }
+            if (bm == null) {
+                if (opts.inBitmap != null) releaseBitmap (opts.inBitmap);
+                throw new IOException ("bitmap corrupt");
+            }
+            if (bm == opts.inBitmap) poolReuses ++;
             if ((bm.getWidth () != BitmapSize) || (bm.getHeight () != BitmapSize)) {
+                releaseBitmap (bm);
                 throw new IOException ("bitmap bad size " + bm.getWidth () + "," + bm.getHeight ());
             }
             return bm;
         } catch (Exception e) {
-            Log.e (TAG, "error reading tile: " + permfile, e);
-            Lib.Ignored (permfile.delete ());
+            Log.e (TAG, "error reading tile: " + zoomLevel + "/" + tileIX + "/" + tileIY, e);
+            tilePack.delete (key);
             return null;
         }
     }
 
     /**
-     * Synchronously download a tile's bitmap file from server onto flash.
+     * Synchronously download a tile's bitmap file from server into the tile pack.
+     * @param key = tile key as returned by GetTileKeys()
+     * @param download = false: just check flash; true: download if not on flash
+     * @return false if not on flash; true: it is in the tile pack
+     */
+    public boolean DownloadTileBitmap (long key, boolean download)
+    {
+        int tileIX = (int) (key >> 36) & 0x0FFFFFFF;
+        int tileIY = (int) (key >>  8) & 0x0FFFFFFF;
+        int zoomLevel = (int) key & 0xFF;
+        return DownloadTileBitmap (tileIX, tileIY, zoomLevel, download);
+    }
+
+    /**
+     * Synchronously download a tile's bitmap file from server into the tile pack.
      * @param tileIX = x coord left edge of tile 0..(1<<zoomLevel)-1
      * @param tileIY = y coord top edge of tile 0..(1<<zoomLevel)-1
      * @param zoomLevel = tile zoom level
-     * @param download = false: return null if not on flash; true: download if not on flash
-     * @return null if not on flash; else: name of flash file
+     * @param download = false: just check flash; true: download if not on flash
+     * @return false if not on flash; true: it is in the tile pack
      */
-    public File DownloadTileBitmap (int tileIX, int tileIY, int zoomLevel, boolean download)
+    public boolean DownloadTileBitmap (int tileIX, int tileIY, int zoomLevel, boolean download)
     {
-        String tilename = zoomLevel + "/" + tileIX + "/" + tileIY + ".png";
-        File permfile = new File (mainActivity.getNoBackupFilesDir (), "streets/" + tilename);
-        File tempfile = new File (permfile.getPath () + ".tmp");
+        long key = ((long) tileIX << 36) | ((long) tileIY << 8) | zoomLevel;
+        long time = tilePack.getTime (key);
 
         /*
-         * See if recent file exists, if not maybe download.
+         * See if recent tile exists, if not maybe download.
          */
-        if (download && (System.currentTimeMillis () - permfile.lastModified () > TILE_FILE_AGE_MS)) {
+        if (download && (System.currentTimeMillis () - time > TILE_FILE_AGE_MS)) {
+            String tilename = zoomLevel + "/" + tileIX + "/" + tileIY + ".png";
 
             /*
              * Open connection to the server to fetch it.
@@ -595,45 +1019,45 @@ public class OpenStreetMap {
 
                     /*
                      * Check HTTP status.
+                     * If we have an old copy, server just says so if it hasn't changed.
                      */
                     httpCon.setRequestMethod ("GET");
+                    if (time > 0) httpCon.setIfModifiedSince (time);
                     int rc = httpCon.getResponseCode ();
+                    if (rc == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        time = System.currentTimeMillis ();
+                        tilePack.touch (key, time);
+                        return true;
+                    }
                     if (rc != HttpURLConnection.HTTP_OK) {
                         throw new IOException ("http response code " + rc);
                     }
 
                     /*
-                     * Read stream into temp file.
+                     * Read stream into memory then append to tile pack.
+                     * Reading to the end and closing the stream without disconnecting
+                     * lets the connection be kept alive for the next tile.
                      */
                     try (InputStream is = httpCon.getInputStream ()) {
-                        //noinspection ConstantConditions
-                        Lib.Ignored (permfile.getParentFile ().mkdirs ());
-                        try (OutputStream os = new FileOutputStream (tempfile)) {
-                            byte[] buff = new byte[4096];
-                            while (true) {
-                                rc = is.read (buff);
-                                if (rc <= 0) break;
-                                os.write (buff, 0, rc);
-                            }
+                        ByteArrayOutputStream os = new ByteArrayOutputStream (BitmapSize * BitmapSize / 4);
+                        byte[] buff = new byte[4096];
+                        while (true) {
+                            rc = is.read (buff);
+                            if (rc <= 0) break;
+                            os.write (buff, 0, rc);
                         }
+                        time = System.currentTimeMillis ();
+                        tilePack.write (key, os.toByteArray (), os.size (), time);
                     }
-                } finally {
+                } catch (IOException ioe) {
                     httpCon.disconnect ();
-                }
-
-                /*
-                 * Successfully wrote complete temp file,
-                 * rename temp file to permanant file.
-                 */
-                if (! tempfile.renameTo (permfile)) {
-                    throw new IOException ("error renaming " + tempfile + " to " + permfile);
+                    throw ioe;
                 }
             } catch (Exception e) {
                 Log.e (TAG, "error downloading tile: " + tilename, e);
-                Lib.Ignored (tempfile.delete ());
             }
         }
 
-        return permfile.exists () ? permfile : null;
+        return time > 0;
     }
 }
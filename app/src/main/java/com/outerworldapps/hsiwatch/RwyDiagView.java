@@ -24,10 +24,13 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Picture;
+import android.graphics.RectF;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.style.ForegroundColorSpan;
@@ -37,10 +40,13 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
-public class RwyDiagView extends OBSDialView implements Invalidatable {
+public class RwyDiagView extends OBSDialView {
     private final static float rwytextsize  = 120;
+    private final static int MAXLAYOUTS = 8;    // number of airports' runways kept
 
     private static class RwyPair {
         public String numa;
@@ -64,21 +70,46 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
         public float lengthpix;     // length in pixels
     }
 
+    // runways of an airport ready to draw
+    private static class RwyLayout {
+        public double pixpernm;
+        public RwyPair[] rwyPairs;
+        public Picture[] pictures = new Picture[2];  // [0]=normal; [1]=ambient
+    }
+
+    private Bitmap tileLayer;                   // north-up tiles at display resolution
     private BuildThread buildThread;
+    private Canvas tileLayerCanvas;
     private double pixpernm;
     private MainActivity mainActivity;
-    private OpenStreetMap openStreetMap;
+    public  OpenStreetMap openStreetMap;
+    public  TilePrefetcher tilePrefetcher;
+    public  TileRegionDownload tileRegionDownload;
     private Paint backPaint;
+    private Paint tileLayerPaint;
+    private RectF tileLayerRect;
     private Paint numberBGPaint;
     private Paint numberFGPaint;
     private Paint runwayPaint;
-    private RwyPair[] rwyPairs;
     private View aptInfoPage;
     private Waypt waypoint;
     private Waypt.AptWaypt airport;
+    private RwyLayout rwyLayout;
+    private volatile boolean tileLayerValid;
 
     private final static RwyPair[] nullRwyPairArray = new RwyPair[0];
 
+    // recently used airports' runways, so switching back and forth is quick
+    // keyed by database path and airport ident so a new database gets its own
+    private final LinkedHashMap<String,RwyLayout> rwyLayouts =
+            new LinkedHashMap<String,RwyLayout> (MAXLAYOUTS * 2, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<String,RwyLayout> eldest)
+        {
+            return size () > MAXLAYOUTS;
+        }
+    };
+
     private final static String[] rwycols = {
             "rwy_number", "rwy_beglat", "rwy_beglon", "rwy_endlat", "rwy_endlon", "rwy_length", "rwy_width"
     };
@@ -106,8 +137,6 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
         goLeftString = "back";
         goUpString   = "info";
 
-        rwyPairs = nullRwyPairArray;
-
         backPaint = new Paint ();
         backPaint.setColor (Color.BLACK);
         backPaint.setStyle (Paint.Style.FILL_AND_STROKE);
@@ -128,13 +157,19 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
         runwayPaint.setColor (Color.GRAY);
         runwayPaint.setStyle (Paint.Style.FILL_AND_STROKE);
 
+        tileLayerPaint = new Paint ();
+        tileLayerPaint.setFilterBitmap (true);
+        tileLayerRect = new RectF (- INNARDSRADIUS, - INNARDSRADIUS, INNARDSRADIUS, INNARDSRADIUS);
+
         openStreetMap = new OpenStreetMap (mainActivity);
+        tilePrefetcher = new TilePrefetcher (mainActivity, openStreetMap);
+        tileRegionDownload = new TileRegionDownload (mainActivity, openStreetMap);
 
         setAmbient ();
     }
 
     protected View getDownView () { return mainActivity.menuMainPage.getView (); }
-    protected View getLeftView () { openStreetMap.CloseBitmaps (); return null; }
+    protected View getLeftView () { openStreetMap.CloseBitmaps (); freeTileLayer (); return null; }
     protected View getRightView () { return null; }
 
     @SuppressLint({ "InflateParams", "SetTextI18n" })
@@ -237,7 +272,7 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
         if (waypoint != mainActivity.navWaypt) {
             waypoint = mainActivity.navWaypt;
             airport  = null;
-            rwyPairs = nullRwyPairArray;
+            rwyLayout = null;
             if (waypoint instanceof Waypt.AptWaypt) {
                 airport = (Waypt.AptWaypt) waypoint;
             }
@@ -248,13 +283,13 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
                     airport = Waypt.AptWaypt.find (sqldb, locwp.apticao, true);
                 }
             }
-            if (airport != null) {
-                SQLiteDatabase sqldb = mainActivity.downloadThread.getSqlDB ();
-                if ((sqldb != null) && (buildThread == null)) {
-                    buildThread = new BuildThread ();
-                    buildThread.aptwp = airport;
-                    buildThread.sqldb = sqldb;
-                    buildThread.start ();
+            SQLiteDatabase sqldb = mainActivity.downloadThread.getSqlDB ();
+            if ((airport != null) && (sqldb != null)) {
+                RwyLayout layout = rwyLayouts.get (layoutKey (sqldb, airport.ident));
+                if (layout != null) {
+                    useLayout (layout);
+                } else if (buildThread == null) {
+                    startBuild (sqldb, airport);
                 }
             }
         }
@@ -264,7 +299,7 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
             canvas.drawText ("no airport or", 0, rwytextsize * -0.5F, numberFGPaint);
             canvas.drawText ("localizer or runway", 0, rwytextsize * 0.5F, numberFGPaint);
             canvas.drawText ("selected", 0, rwytextsize * 1.5F, numberFGPaint);
-        } else {
+        } else if (rwyLayout != null) {
 
             // display copyright message for first 3 seconds
             if ((pixmap.copyrtSize == 0.0F) && (pixmap.copyrtPath == null)) {
@@ -281,21 +316,36 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
                 if (pixmap.canPixPerSqIn != cppsi) {
                     pixmap.canPixPerSqIn = cppsi;
                     openStreetMap.ComputeZoom (pixmap);
+                    tileLayerValid = false;
                 }
-                openStreetMap.Draw (canvas, pixmap, this);
+                drawTileLayer (canvas, scale);
             }
 
-            // draw runway outlines
-            drawRunways (canvas, false, runwayPaint);
+            // runways are the same every frame so record them once for each ambient setting
+            int amb = mainActivity.ambient ? 1 : 0;
+            Picture picture = rwyLayout.pictures[amb];
+            if (picture == null) {
+                picture = new Picture ();
+                Canvas pc = picture.beginRecording (INNARDSRADIUS * 2, INNARDSRADIUS * 2);
+                pc.translate (INNARDSRADIUS, INNARDSRADIUS);
+
+                // draw runway outlines
+                drawRunways (pc, rwyLayout.rwyPairs, false, runwayPaint);
 
-            // draw runway numbers
-            drawRunways (canvas, true, numberBGPaint);
-            drawRunways (canvas, true, numberFGPaint);
+                // draw runway numbers
+                drawRunways (pc, rwyLayout.rwyPairs, true, numberBGPaint);
+                drawRunways (pc, rwyLayout.rwyPairs, true, numberFGPaint);
+
+                picture.endRecording ();
+                rwyLayout.pictures[amb] = picture;
+            }
+            canvas.translate (- INNARDSRADIUS, - INNARDSRADIUS);
+            canvas.drawPicture (picture);
         }
     }
 
     // draw all the runways
-    private void drawRunways (Canvas canvas, boolean numbers, Paint paint)
+    private static void drawRunways (Canvas canvas, RwyPair[] rwyPairs, boolean numbers, Paint paint)
     {
 
         canvas.save ();
@@ -341,12 +391,85 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
         }
     }
 
+    // draw tiles to north-up bitmap if anything changed, then draw that rotated to canvas
+    // the bitmap is the size it is displayed so each frame is just one drawBitmap()
+    // the diagram is always centered on the airport so it only changes with zoom or new tiles
+    private void drawTileLayer (Canvas canvas, double scale)
+    {
+        int size = (int) Math.ceil (INNARDSRADIUS * 2 * scale);
+        if ((tileLayer == null) || (tileLayer.getWidth () != size)) {
+            freeTileLayer ();
+            tileLayer = Bitmap.createBitmap (size, size, Bitmap.Config.ARGB_8888);
+            tileLayerCanvas = new Canvas (tileLayer);
+        }
+
+        // copyright message is drawn along top of rotated dial so can't be kept
+        if (pixmap.copyrtPath != null) tileLayerValid = false;
+
+        if (! tileLayerValid) {
+            tileLayerValid = true;
+            tileLayer.eraseColor (Color.TRANSPARENT);
+            float s = size / (INNARDSRADIUS * 2.0F);
+            tileLayerCanvas.save ();
+            try {
+                tileLayerCanvas.scale (s, s);
+                tileLayerCanvas.translate (INNARDSRADIUS, INNARDSRADIUS);
+                openStreetMap.Draw (tileLayerCanvas, pixmap, tileLayerInval);
+            } finally {
+                tileLayerCanvas.restore ();
+            }
+        }
+
+        canvas.drawBitmap (tileLayer, null, tileLayerRect, tileLayerPaint);
+    }
+
+    private void freeTileLayer ()
+    {
+        if (tileLayer != null) {
+            tileLayer.recycle ();
+            tileLayer = null;
+            tileLayerCanvas = null;
+        }
+        tileLayerValid = false;
+    }
+
+    // tile opener and downloader threads call this when a tile is ready
+    private final Invalidatable tileLayerInval = new Invalidatable () {
+        @Override
+        public void postInvalidate ()
+        {
+            tileLayerValid = false;
+            RwyDiagView.this.postInvalidate ();
+        }
+    };
+
+    // get radius of diagram given radius of runways from airport center
+    // leaves room for runway numbers plus a little extra
+    public static double diagramRadiusNM (double radiusnm)
+    {
+        return radiusnm * INNARDSRADIUS / (INNARDSRADIUS - rwytextsize * 2);
+    }
+
+    // get canvas pixels per square inch tiles get drawn with
+    // estimate from screen size if not drawn yet
+    public double getCanPixPerSqIn ()
+    {
+        if (pixmap.canPixPerSqIn > 0.0) return pixmap.canPixPerSqIn;
+        double scale = Math.min (mainActivity.widthPixels, mainActivity.heightPixels) / 2000.0 * SIMPLESCALE;
+        return mainActivity.dotsPerSqIn / (scale * scale);
+    }
+
     // get pixel x,y for a given lat,lon
     private void getPixXY (double lat, double lon, PointD pix)
     {
-        double nm = Lib.LatLonDist (airport.lat, airport.lon, lat, lon);
-        double px = nm * pixpernm;
-        double tc = Lib.LatLonTC_rad (airport.lat, airport.lon, lat, lon);
+        getPixXY (airport, pixpernm, lat, lon, pix);
+    }
+
+    private static void getPixXY (Waypt.AptWaypt apt, double ppnm, double lat, double lon, PointD pix)
+    {
+        double nm = Lib.LatLonDist (apt.lat, apt.lon, lat, lon);
+        double px = nm * ppnm;
+        double tc = Lib.LatLonTC_rad (apt.lat, apt.lon, lat, lon);
         pix.x =   px * Math.sin (tc);
         pix.y = - px * Math.cos (tc);
     }
@@ -360,6 +483,44 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
         ll.lon = Lib.LatLonHdgDist2Lon (airport.lat, airport.lon, tc, nm);
     }
 
+    // start drawing the given airport's runways and the map tiles around them
+    private void useLayout (RwyLayout layout)
+    {
+        rwyLayout = layout;
+        pixpernm  = layout.pixpernm;
+
+        pixmap.canvasWidth  = INNARDSRADIUS * 2;
+        pixmap.canvasHeight = INNARDSRADIUS * 2;
+
+        double radnm = INNARDSRADIUS / pixpernm;
+        pixmap.canvasNorthLat = Lib.LatHdgDist2Lat (airport.lat, 0.0, radnm);
+        pixmap.canvasSouthLat = Lib.LatHdgDist2Lat (airport.lat, 180.0, radnm);
+        pixmap.canvasEastLon  = Lib.LatLonHdgDist2Lon (airport.lat, airport.lon, 90.0, radnm);
+        pixmap.canvasWestLon  = Lib.LatLonHdgDist2Lon (airport.lat, airport.lon, 270.0, radnm);
+
+        pixmap.copyrtPath = null;
+        pixmap.copyrtSize = 0.0F;
+
+        LatLon ll = new LatLon ();
+        getLatLon (-INNARDSRADIUS, -INNARDSRADIUS, ll);
+        pixmap.lastTlLat = ll.lat;
+        pixmap.lastTlLon = ll.lon;
+        getLatLon (INNARDSRADIUS, -INNARDSRADIUS, ll);
+        pixmap.lastTrLat = ll.lat;
+        pixmap.lastTrLon = ll.lon;
+        getLatLon (-INNARDSRADIUS, INNARDSRADIUS, ll);
+        pixmap.lastBlLat = ll.lat;
+        pixmap.lastBlLon = ll.lon;
+        getLatLon (INNARDSRADIUS, INNARDSRADIUS, ll);
+        pixmap.lastBrLat = ll.lat;
+        pixmap.lastBrLon = ll.lon;
+
+        // re-compute zoom level
+        pixmap.canPixPerSqIn = 0.0;
+
+        invalidate ();
+    }
+
     private final RwyPixelMapper pixmap = new RwyPixelMapper ();
     private class RwyPixelMapper extends PixelMapper implements Runnable {
 
@@ -373,13 +534,31 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
         public void run ()
         {
             copyrtPath = null;
+            tileLayerValid = false;
             invalidate ();
         }
     }
 
+    // key for rwyLayouts, path is the same for same database cycle
+    private static String layoutKey (SQLiteDatabase sqldb, String ident)
+    {
+        return sqldb.getPath () + ":" + ident;
+    }
+
+    // start building runway layout for the given airport from the given database
+    private void startBuild (SQLiteDatabase sqldb, Waypt.AptWaypt aptwp)
+    {
+        buildThread = new BuildThread ();
+        buildThread.aptwp = aptwp;
+        buildThread.sqldb = sqldb;
+        buildThread.key   = layoutKey (sqldb, aptwp.ident);
+        buildThread.start ();
+    }
+
     // build drawable list of runways for an airport
     private class BuildThread extends Thread {
         public SQLiteDatabase sqldb;
+        public String key;
         public Waypt.AptWaypt aptwp;
 
         @Override
@@ -389,8 +568,8 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
             final LinkedList<RwyPair> rps = new LinkedList<> ();
             double radiusnm = 0.25;
             try (Cursor cursor = sqldb.query ("runways", rwycols,
-                    "rwy_icaoid='" + aptwp.ident + "'",
-                    null, null, null, null, null)) {
+                    "rwy_icaoid=?", new String[] { aptwp.ident },
+                    null, null, null, null)) {
                 if (cursor.moveToFirst ()) do {
                     String numa = cursor.getString (0);
                     double lata = cursor.getDouble (1);
@@ -426,18 +605,20 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
 
             // compute pixels per nautical mile
             // leave room for runway numbers plus a little extra
-            pixpernm = (INNARDSRADIUS - rwytextsize * 2) / radiusnm;
+            final RwyLayout layout = new RwyLayout ();
+            layout.pixpernm = INNARDSRADIUS / diagramRadiusNM (radiusnm);
+            layout.rwyPairs = rps.toArray (nullRwyPairArray);
 
             // compute pixel dimensions, locations, orientations, etc of runways
-            double pixperft = pixpernm / Lib.FtPerNM;
+            double pixperft = layout.pixpernm / Lib.FtPerNM;
             PointD apix = new PointD ();
             PointD bpix = new PointD ();
             for (RwyPair rp : rps) {
                 rp.lengthpix = (float) (rp.length * pixperft);
                 rp.widthpix  = Math.max (5.0F, (float) (rp.width  * pixperft));
 
-                getPixXY (rp.lata, rp.lona, apix);
-                getPixXY (rp.latb, rp.lonb, bpix);
+                getPixXY (aptwp, layout.pixpernm, rp.lata, rp.lona, apix);
+                getPixXY (aptwp, layout.pixpernm, rp.latb, rp.lonb, bpix);
 
                 rp.centerxpix = (float) (apix.x + bpix.x) / 2.0F;
                 rp.centerypix = (float) (apix.y + bpix.y) / 2.0F;
@@ -449,46 +630,14 @@ public class RwyDiagView extends OBSDialView implements Invalidatable {
                 @Override
                 public void run ()
                 {
-                    if (aptwp == airport) {
-                        buildThread = null;
-
-                        rwyPairs = rps.toArray (nullRwyPairArray);
-
-                        pixmap.canvasWidth  = INNARDSRADIUS * 2;
-                        pixmap.canvasHeight = INNARDSRADIUS * 2;
-
-                        double radnm = INNARDSRADIUS / pixpernm;
-                        pixmap.canvasNorthLat = Lib.LatHdgDist2Lat (aptwp.lat, 0.0, radnm);
-                        pixmap.canvasSouthLat = Lib.LatHdgDist2Lat (aptwp.lat, 180.0, radnm);
-                        pixmap.canvasEastLon  = Lib.LatLonHdgDist2Lon (aptwp.lat, aptwp.lon, 90.0, radnm);
-                        pixmap.canvasWestLon  = Lib.LatLonHdgDist2Lon (aptwp.lat, aptwp.lon, 270.0, radnm);
-
-                        pixmap.copyrtPath = null;
-                        pixmap.copyrtSize = 0.0F;
-
-                        LatLon ll = new LatLon ();
-                        getLatLon (-INNARDSRADIUS, -INNARDSRADIUS, ll);
-                        pixmap.lastTlLat = ll.lat;
-                        pixmap.lastTlLon = ll.lon;
-                        getLatLon (INNARDSRADIUS, -INNARDSRADIUS, ll);
-                        pixmap.lastTrLat = ll.lat;
-                        pixmap.lastTrLon = ll.lon;
-                        getLatLon (-INNARDSRADIUS, INNARDSRADIUS, ll);
-                        pixmap.lastBlLat = ll.lat;
-                        pixmap.lastBlLon = ll.lon;
-                        getLatLon (INNARDSRADIUS, INNARDSRADIUS, ll);
-                        pixmap.lastBrLat = ll.lat;
-                        pixmap.lastBrLon = ll.lon;
-
-                        // re-compute zoom level
-                        pixmap.canPixPerSqIn = 0.0;
-
-                        invalidate ();
-                    } else {
-                        buildThread = new BuildThread ();
-                        buildThread.aptwp = airport;
-                        buildThread.sqldb = sqldb;
-                        buildThread.start ();
+                    buildThread = null;
+                    rwyLayouts.put (key, layout);
+                    SQLiteDatabase curdb = mainActivity.downloadThread.getSqlDB ();
+                    if ((aptwp == airport) && (curdb == sqldb)) {
+                        useLayout (layout);
+                    } else if ((airport != null) && (curdb != null) &&
+                            ! rwyLayouts.containsKey (layoutKey (curdb, airport.ident))) {
+                        startBuild (curdb, airport);
                     }
                 }
             });
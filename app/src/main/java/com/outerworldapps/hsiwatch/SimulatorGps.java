@@ -24,7 +24,6 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
-import android.hardware.GeomagneticField;
 import android.text.InputType;
 import android.view.View;
 import android.view.inputmethod.EditorInfo;
@@ -278,8 +277,7 @@ public class SimulatorGps implements GpsReceiver, Runnable {
                 long   newnow = ptendTime + dtms;
                 double distnm = spdkts * dtms / 3600000.0;
                 double newhdg = hdgdeg + dtms / 1000.0 * turnrt;
-                GeomagneticField gmf = new GeomagneticField ((float) oldlat, (float) oldlon, (float) (altft / Lib.FtPerM), newnow);
-                double hdgtru = newhdg + gmf.getDeclination ();
+                double hdgtru = newhdg - MagVarGrid.get (oldlat, oldlon, altft / Lib.FtPerM, newnow);
                 double newlat = Lib.LatHdgDist2Lat (oldlat, hdgtru, distnm);
                 double newlon = Lib.LatLonHdgDist2Lon (oldlat, oldlon, hdgtru, distnm);
                 double newalt = altft + dtms / 60000.0 * climrt;
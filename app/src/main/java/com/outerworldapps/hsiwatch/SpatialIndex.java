@@ -0,0 +1,202 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+
+/**
+ * Spatial index of moving map waypoints.
+ * Built into the database file just after it is downloaded.
+ * Waypoints are bucketed into 1 degree lat/lon cells so range queries
+ * only read rows in the cells that overlap the area being queried.
+ */
+public class SpatialIndex {
+    private final static String TABLE = "mapcells";
+
+    // build index into the given database file
+    // called in download thread before the file is renamed into place
+    public static void build (File dbfile)
+    {
+        SQLiteDatabase sqldb = SQLiteDatabase.openDatabase (dbfile.getPath (), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            sqldb.beginTransaction ();
+            try {
+                // without rowid so rows for a cell are stored together
+                sqldb.execSQL ("DROP TABLE IF EXISTS " + TABLE);
+                sqldb.execSQL ("CREATE TABLE " + TABLE + " (mc_cell INTEGER NOT NULL, mc_ident TEXT NOT NULL, " +
+                        "mc_nav INTEGER NOT NULL, mc_lat REAL NOT NULL, mc_lon REAL NOT NULL, mc_rft INTEGER NOT NULL, " +
+                        "PRIMARY KEY (mc_cell, mc_ident, mc_nav)) WITHOUT ROWID");
+                SQLiteStatement insert = sqldb.compileStatement ("INSERT OR IGNORE INTO " + TABLE +
+                        " (mc_cell,mc_ident,mc_nav,mc_lat,mc_lon,mc_rft) VALUES (?,?,?,?,?,?)");
+
+                // navaids with type VOR% (VOR, VOR/DME, VORTAC)
+                try (Cursor cursor = sqldb.rawQuery ("SELECT nav_faaid,nav_lat,nav_lon FROM navaids " +
+                        "WHERE nav_type LIKE 'VOR%' AND nav_faaid IS NOT NULL", null)) {
+                    if (cursor.moveToFirst ()) do {
+                        double lat = cursor.getDouble (1);
+                        double lon = cursor.getDouble (2);
+                        insertRow (insert, cursor.getString (0), true, lat, lon, 0);
+                    } while (cursor.moveToNext ());
+                }
+
+                // airports with their longest non-water runway length
+                // located at the beginning of that runway
+                // skip any without an ident, a null would abort the whole build
+                try (Cursor cursor = sqldb.rawQuery ("SELECT apt_icaoid,rwy_beglat,rwy_beglon,rwy_endlat,rwy_endlon,IFNULL(rwy_number,'') " +
+                        "FROM runways,airports WHERE apt_faaid=rwy_faaid AND apt_icaoid IS NOT NULL ORDER BY apt_icaoid", null)) {
+                    String aptid = null;
+                    double aptlat = 0.0;
+                    double aptlon = 0.0;
+                    int aptrft = 0;
+                    if (cursor.moveToFirst ()) do {
+                        String id = cursor.getString (0);
+                        if (! id.equals (aptid)) {
+                            if (aptrft > 0) insertRow (insert, aptid, false, aptlat, aptlon, aptrft);
+                            aptid  = id;
+                            aptrft = 0;
+                        }
+                        if (! cursor.getString (5).endsWith ("W")) {
+                            double beglat = cursor.getDouble (1);
+                            double beglon = cursor.getDouble (2);
+                            double endlat = cursor.getDouble (3);
+                            double endlon = cursor.getDouble (4);
+                            int rft = (int) Math.round (Lib.LatLonDist (beglat, beglon, endlat, endlon) * Lib.FtPerNM);
+                            if (aptrft < rft) {
+                                aptrft = rft;
+                                aptlat = beglat;
+                                aptlon = beglon;
+                            }
+                        }
+                    } while (cursor.moveToNext ());
+                    if (aptrft > 0) insertRow (insert, aptid, false, aptlat, aptlon, aptrft);
+                }
+
+                insert.close ();
+                sqldb.setTransactionSuccessful ();
+            } finally {
+                sqldb.endTransaction ();
+            }
+        } finally {
+            sqldb.close ();
+        }
+    }
+
+    private static void insertRow (SQLiteStatement insert, String ident, boolean nav, double lat, double lon, int rft)
+    {
+        insert.bindLong   (1, cellKey (latCell (lat), lonCell (lon)));
+        insert.bindString (2, ident);
+        insert.bindLong   (3, nav ? 1 : 0);
+        insert.bindDouble (4, lat);
+        insert.bindDouble (5, lon);
+        insert.bindLong   (6, rft);
+        insert.executeInsert ();
+    }
+
+    // see if the given database has the index
+    // databases downloaded by older versions of the app don't
+    public static boolean hasIndex (SQLiteDatabase sqldb)
+    {
+        return hasIndex (sqldb, TABLE);
+    }
+
+    // see if the given database has the given index table
+    public static boolean hasIndex (SQLiteDatabase sqldb, String table)
+    {
+        try (Cursor cursor = sqldb.rawQuery ("SELECT name FROM sqlite_master WHERE type='table' AND name=?",
+                new String[] { table })) {
+            return cursor.moveToFirst ();
+        }
+    }
+
+    // query waypoints in the cells overlapping the given box
+    //  input:
+    //   westLon,eastLon = may be outside -180..+180, eastLon > westLon
+    //   minrft = minimum airport runway length (feet)
+    //  output:
+    //   returns cursor with ident, lat, lon, rft, nav columns
+    //   caller must still check exact lat,lon against box
+    public static Cursor query (SQLiteDatabase sqldb, double southLat, double northLat,
+                                double westLon, double eastLon, int minrft)
+    {
+        int southCell = latCell (Math.max (southLat, -90.0));
+        int northCell = latCell (Math.min (northLat,  90.0));
+        int westCell  = (int) Math.floor (westLon + 180.0);
+        int eastCell  = (int) Math.floor (eastLon + 180.0);
+        if (eastCell - westCell >= 359) {
+            westCell = 0;
+            eastCell = 359;
+        } else {
+            int w = ((westCell % 360) + 360) % 360;
+            eastCell += w - westCell;
+            westCell  = w;
+        }
+
+        // one range of cell numbers for each row of latitude cells
+        // two ranges if the row wraps past 180 degrees
+        StringBuilder sb = new StringBuilder ();
+        sb.append ("SELECT mc_ident,mc_lat,mc_lon,mc_rft,mc_nav FROM ");
+        sb.append (TABLE);
+        sb.append (" WHERE (");
+        for (int latcell = southCell; latcell <= northCell; latcell ++) {
+            if (latcell > southCell) sb.append (" OR ");
+            if (eastCell < 360) {
+                appendRange (sb, cellKey (latcell, westCell), cellKey (latcell, eastCell));
+            } else {
+                appendRange (sb, cellKey (latcell, westCell), cellKey (latcell, 359));
+                sb.append (" OR ");
+                appendRange (sb, cellKey (latcell, 0), cellKey (latcell, eastCell - 360));
+            }
+        }
+        sb.append (") AND (mc_nav OR mc_rft>=");
+        sb.append (minrft);
+        sb.append (')');
+        return sqldb.rawQuery (sb.toString (), null);
+    }
+
+    private static void appendRange (StringBuilder sb, int lo, int hi)
+    {
+        sb.append ("mc_cell BETWEEN ");
+        sb.append (lo);
+        sb.append (" AND ");
+        sb.append (hi);
+    }
+
+    // cell numbering, 0..179 rows of latitude, 0..359 columns of longitude
+    private static int latCell (double lat)
+    {
+        return Math.min (179, (int) Math.floor (lat + 90.0));
+    }
+
+    private static int lonCell (double lon)
+    {
+        return ((int) Math.floor (Lib.NormalLon (lon) + 180.0)) % 360;
+    }
+
+    private static int cellKey (int latcell, int loncell)
+    {
+        return latcell * 360 + loncell;
+    }
+}
@@ -0,0 +1,744 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Stores all the map tiles in two files instead of one file per tile.
+ *
+ *  tiles.dat: append-only data file
+ *    header: int magic, int version, long fileid
+ *    records: long key, long time, int length, byte[length] png
+ *
+ *  tiles.idx: memory-mapped open-addressed hash table
+ *    header: see IH_ below
+ *    slots: long key+1 (0 = empty, -1 = deleted), long offset<<24|length, long time, long atime
+ *
+ * The time is when the tile was last downloaded or found unchanged on the server.
+ * The atime is when it was last read and is used to evict the least recently
+ * used tiles when the pack goes over its quota.
+ *
+ * Keys are (tileX<<36)|(tileY<<8)|zoom as used by OpenStreetMap.
+ * Replaced and deleted records stay in the data file until the
+ * background compaction copies the live ones to a new file.
+ */
+public class TilePack {
+    private final static String TAG = "WairToNow";
+
+    private final static int DATMAGIC = 0x54504B44;  // "TPKD"
+    private final static int IDXMAGIC = 0x54504B49;  // "TPKI"
+    private final static int VERSION  = 1;           // data file version
+    private final static int IDXVERSION = 2;         // index file version, 1 had no atime
+    private final static int DATHDR   = 16;
+    private final static int RECHDR   = 20;
+    private final static int MINCAP   = 8192;        // power of 2
+    private final static long COMPACTMIN = 4L * 1024 * 1024;
+
+    private final static int IDXHDR       = 64;
+    private final static int IH_MAGIC     = 0;
+    private final static int IH_VERSION   = 4;
+    private final static int IH_CAPACITY  = 8;
+    private final static int IH_COUNT     = 12;      // live slots
+    private final static int IH_USED      = 16;      // live + deleted slots
+    private final static int IH_FILEID    = 24;
+    private final static int IH_DATAEND   = 32;
+    private final static int IH_LIVEBYTES = 40;
+
+    private final static int SLOTSIZE = 32;
+    private final static int SL_KEY   = 0;
+    private final static int SL_PACK  = 8;
+    private final static int SL_TIME  = 16;
+    private final static int SL_ATIME = 24;
+    private final static int V1SLOTSIZE = 24;
+    private final static long EMPTY   = 0;
+    private final static long DELETED = -1;
+
+    // tile as read from pack
+    // png bytes are data[offset..offset+length-1]
+    public static class Tile {
+        public byte[] data;
+        public int offset;
+        public int length;
+        public long time;
+    }
+
+    private boolean compacting;
+    private ByteBuffer recHdr;
+    private File datFile;
+    private File dir;
+    private File idxFile;
+    private FileChannel datChan;
+    private int capacity;
+    private long quota = Long.MAX_VALUE;
+    private MappedByteBuffer idx;
+    private RandomAccessFile datRaf;
+    private RandomAccessFile idxRaf;
+
+    public TilePack (File dir)
+    {
+        this.dir = dir;
+        datFile = new File (dir, "tiles.dat");
+        idxFile = new File (dir, "tiles.idx");
+        recHdr  = ByteBuffer.allocate (RECHDR);
+        Lib.Ignored (dir.mkdirs ());
+        try {
+            open ();
+        } catch (IOException ioe) {
+            Log.w (TAG, "error opening tile pack, resetting", ioe);
+            reset ();
+        }
+
+        // move any tiles stored the old way into the pack
+        // then compact if needed
+        compacting = true;
+        new Thread () {
+            @Override
+            public void run ()
+            {
+                setName ("TilePack maintenance");
+                setPriority (MIN_PRIORITY);
+                importLegacy (TilePack.this.dir, -1, -1);
+                synchronized (TilePack.this) {
+                    compacting = false;
+                    maybeCompact ();
+                }
+            }
+        }.start ();
+    }
+
+    /**
+     * Read a tile with a single positioned read.
+     * @return null if not in pack
+     */
+    public synchronized Tile read (long key)
+    {
+        if (idx == null) return null;
+        int slot = findSlot (key);
+        if (slot < 0) return null;
+        long pack = idx.getLong (slotOfs (slot) + SL_PACK);
+        long offset = pack >>> 24;
+        int length = (int) pack & 0xFFFFFF;
+        Tile tile = new Tile ();
+        tile.data   = new byte[RECHDR+length];
+        tile.offset = RECHDR;
+        tile.length = length;
+        tile.time   = idx.getLong (slotOfs (slot) + SL_TIME);
+        idx.putLong (slotOfs (slot) + SL_ATIME, System.currentTimeMillis ());
+        try {
+            ByteBuffer bb = ByteBuffer.wrap (tile.data);
+            while (bb.hasRemaining ()) {
+                if (datChan.read (bb, offset + bb.position ()) < 0) throw new IOException ("eof reading tile");
+            }
+            if (bb.getLong (0) != key) throw new IOException ("tile key mismatch");
+        } catch (IOException ioe) {
+            Log.w (TAG, "error reading tile " + Long.toHexString (key), ioe);
+            delete (key);
+            return null;
+        }
+        return tile;
+    }
+
+    /**
+     * Get time tile was written.
+     * @return 0 if not in pack
+     */
+    public synchronized long getTime (long key)
+    {
+        if (idx == null) return 0;
+        int slot = findSlot (key);
+        return (slot < 0) ? 0 : idx.getLong (slotOfs (slot) + SL_TIME);
+    }
+
+    /**
+     * Get length of tile's data.
+     * @return 0 if not in pack
+     */
+    public synchronized int getLength (long key)
+    {
+        if (idx == null) return 0;
+        int slot = findSlot (key);
+        return (slot < 0) ? 0 : (int) idx.getLong (slotOfs (slot) + SL_PACK) & 0xFFFFFF;
+    }
+
+    /**
+     * Get number of bytes of live tiles in the pack.
+     */
+    public synchronized long getLiveBytes ()
+    {
+        return (idx == null) ? 0 : idx.getLong (IH_LIVEBYTES);
+    }
+
+    /**
+     * Set maximum bytes of live tiles to keep.
+     * Least recently read tiles are removed to get under it.
+     */
+    public synchronized void setQuota (long bytes)
+    {
+        quota = bytes;
+        maybeEvict ();
+        maybeCompact ();
+    }
+
+    /**
+     * Server says tile hasn't changed, mark it as if just downloaded.
+     */
+    public synchronized void touch (long key, long time)
+    {
+        if (idx == null) return;
+        int slot = findSlot (key);
+        if (slot >= 0) idx.putLong (slotOfs (slot) + SL_TIME, time);
+    }
+
+    /**
+     * Append tile to data file and point index at it.
+     */
+    public synchronized void write (long key, byte[] data, int length, long time)
+    {
+        if ((idx == null) || (length > 0xFFFFFF)) return;
+        try {
+            long offset = idx.getLong (IH_DATAEND);
+            appendRecord (datChan, offset, key, time, data, 0, length);
+            setSlot (key, (offset << 24) | length, time, System.currentTimeMillis ());
+            idx.putLong (IH_DATAEND, offset + RECHDR + length);
+            maybeEvict ();
+            maybeCompact ();
+        } catch (IOException ioe) {
+            Log.w (TAG, "error writing tile " + Long.toHexString (key), ioe);
+        }
+    }
+
+    /**
+     * Remove tile from index.
+     * Its data stays in the data file until compacted.
+     */
+    public synchronized void delete (long key)
+    {
+        if (idx == null) return;
+        int slot = findSlot (key);
+        if (slot >= 0) {
+            int so = slotOfs (slot);
+            long pack = idx.getLong (so + SL_PACK);
+            idx.putLong (so + SL_KEY, DELETED);
+            idx.putInt (IH_COUNT, idx.getInt (IH_COUNT) - 1);
+            idx.putLong (IH_LIVEBYTES, idx.getLong (IH_LIVEBYTES) - RECHDR - (pack & 0xFFFFFF));
+        }
+    }
+
+    /******************\
+     *  Index access  *
+    \******************/
+
+    private static int hash (long key)
+    {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key >>> 32);
+    }
+
+    private static int slotOfs (int slot)
+    {
+        return IDXHDR + slot * SLOTSIZE;
+    }
+
+    // find slot for key
+    //  returns >= 0: slot number holding key
+    //           < 0: -1 - first free slot where it could be put
+    private int findSlot (long key)
+    {
+        int mask = capacity - 1;
+        int free = -1;
+        for (int slot = hash (key) & mask;; slot = (slot + 1) & mask) {
+            long k = idx.getLong (slotOfs (slot) + SL_KEY);
+            if (k == EMPTY) return -1 - ((free < 0) ? slot : free);
+            if (k == DELETED) {
+                if (free < 0) free = slot;
+            } else if (k == key + 1) {
+                return slot;
+            }
+        }
+    }
+
+    // set slot for key, adding or replacing
+    private void setSlot (long key, long pack, long time, long atime)
+    {
+        int slot = findSlot (key);
+        if (slot >= 0) {
+            long oldpack = idx.getLong (slotOfs (slot) + SL_PACK);
+            idx.putLong (IH_LIVEBYTES, idx.getLong (IH_LIVEBYTES) - RECHDR - (oldpack & 0xFFFFFF));
+        } else {
+            slot = -1 - slot;
+            int so = slotOfs (slot);
+            if (idx.getLong (so + SL_KEY) == EMPTY) idx.putInt (IH_USED, idx.getInt (IH_USED) + 1);
+            idx.putLong (so + SL_KEY, key + 1);
+            idx.putInt (IH_COUNT, idx.getInt (IH_COUNT) + 1);
+        }
+        int so = slotOfs (slot);
+        idx.putLong (so + SL_PACK, pack);
+        idx.putLong (so + SL_TIME, time);
+        idx.putLong (so + SL_ATIME, atime);
+        idx.putLong (IH_LIVEBYTES, idx.getLong (IH_LIVEBYTES) + RECHDR + (pack & 0xFFFFFF));
+
+        // keep load factor under 60% counting deleted slots
+        if (idx.getInt (IH_USED) * 5L > capacity * 3L) {
+            try {
+                rehash ();
+            } catch (IOException ioe) {
+                Log.w (TAG, "error growing tile index", ioe);
+            }
+        }
+    }
+
+    // rebuild index sized for the number of live slots
+    private void rehash ()
+            throws IOException
+    {
+        int n = idx.getInt (IH_COUNT);
+        long[] keys  = new long[n];
+        long[] packs = new long[n];
+        long[] times = new long[n];
+        long[] atimes = new long[n];
+        int j = 0;
+        for (int slot = 0; slot < capacity; slot ++) {
+            int so = slotOfs (slot);
+            long k = idx.getLong (so + SL_KEY);
+            if ((k != EMPTY) && (k != DELETED)) {
+                keys[j]  = k - 1;
+                packs[j] = idx.getLong (so + SL_PACK);
+                times[j] = idx.getLong (so + SL_TIME);
+                atimes[j] = idx.getLong (so + SL_ATIME);
+                j ++;
+            }
+        }
+
+        int newcap = MINCAP;
+        while (newcap * 3L < n * 10L) newcap *= 2;
+        long fileid    = idx.getLong (IH_FILEID);
+        long dataend   = idx.getLong (IH_DATAEND);
+        long livebytes = idx.getLong (IH_LIVEBYTES);
+        idx = mapIndex (idxRaf, newcap);
+        capacity = newcap;
+        initIndexHeader (idx, newcap, fileid, dataend);
+        for (j = 0; j < n; j ++) setSlot (keys[j], packs[j], times[j], atimes[j]);
+        idx.putLong (IH_LIVEBYTES, livebytes);
+    }
+
+    /*****************\
+     *  File access  *
+    \*****************/
+
+    // open existing files and make sure they go together
+    private void open ()
+            throws IOException
+    {
+        if (! datFile.exists () || ! idxFile.exists ()) throw new IOException ("tile pack missing");
+        datRaf  = new RandomAccessFile (datFile, "rw");
+        datChan = datRaf.getChannel ();
+        idxRaf  = new RandomAccessFile (idxFile, "rw");
+        if (idxRaf.length () < IDXHDR) throw new IOException ("tile index too short");
+        idx = idxRaf.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, IDXHDR);
+        if (idx.getInt (IH_MAGIC) != IDXMAGIC) throw new IOException ("bad tile index magic");
+        if (idx.getInt (IH_VERSION) == 1) upgradeIndex ();
+        if (idx.getInt (IH_VERSION) != IDXVERSION) throw new IOException ("bad tile index version");
+        capacity = idx.getInt (IH_CAPACITY);
+        if ((capacity < MINCAP) || ((capacity & (capacity - 1)) != 0) ||
+                (idxRaf.length () != slotOfs (capacity))) {
+            throw new IOException ("bad tile index capacity");
+        }
+        idx = mapIndex (idxRaf, capacity);
+
+        ByteBuffer dh = ByteBuffer.allocate (DATHDR);
+        if (datChan.read (dh, 0) != DATHDR) throw new IOException ("tile data too short");
+        if (dh.getInt (0) != DATMAGIC) throw new IOException ("bad tile data magic");
+        if (dh.getInt (4) != VERSION) throw new IOException ("bad tile data version");
+        if (dh.getLong (8) != idx.getLong (IH_FILEID)) throw new IOException ("tile data/index mismatch");
+
+        // discard anything appended after last index update
+        long dataend = idx.getLong (IH_DATAEND);
+        if (dataend > datChan.size ()) throw new IOException ("tile data truncated");
+        datChan.truncate (dataend);
+    }
+
+    // convert version 1 index (no atime) to current version
+    // writes new index to temp file then renames it in place of old one
+    private void upgradeIndex ()
+            throws IOException
+    {
+        int cap = idx.getInt (IH_CAPACITY);
+        if ((cap < MINCAP) || ((cap & (cap - 1)) != 0) ||
+                (idxRaf.length () != IDXHDR + (long) cap * V1SLOTSIZE)) {
+            throw new IOException ("bad tile index capacity");
+        }
+        MappedByteBuffer oldmap = idxRaf.getChannel ().map (FileChannel.MapMode.READ_ONLY, 0, idxRaf.length ());
+        File newidx = new File (dir, "tiles.idx.new");
+        long now = System.currentTimeMillis ();
+        try (RandomAccessFile raf = new RandomAccessFile (newidx, "rw")) {
+            MappedByteBuffer map = mapIndex (raf, cap);
+            for (int i = 0; i < IDXHDR; i += 8) map.putLong (i, oldmap.getLong (i));
+            map.putInt (IH_VERSION, IDXVERSION);
+            for (int slot = 0; slot < cap; slot ++) {
+                int oldso = IDXHDR + slot * V1SLOTSIZE;
+                int so = slotOfs (slot);
+                map.putLong (so + SL_KEY,   oldmap.getLong (oldso + SL_KEY));
+                map.putLong (so + SL_PACK,  oldmap.getLong (oldso + SL_PACK));
+                map.putLong (so + SL_TIME,  oldmap.getLong (oldso + SL_TIME));
+                map.putLong (so + SL_ATIME, now);
+            }
+            map.force ();
+        }
+        idxRaf.close ();
+        if (! newidx.renameTo (idxFile)) throw new IOException ("error renaming upgraded tile index");
+        idxRaf = new RandomAccessFile (idxFile, "rw");
+        idx = idxRaf.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, IDXHDR);
+        Log.i (TAG, "tile index upgraded");
+    }
+
+    // close files
+    private void close ()
+    {
+        try {
+            if (datRaf != null) datRaf.close ();
+            if (idxRaf != null) idxRaf.close ();
+        } catch (IOException ioe) {
+            Log.w (TAG, "error closing tile pack", ioe);
+        }
+        datRaf  = null;
+        datChan = null;
+        idxRaf  = null;
+        idx     = null;
+    }
+
+    // start over with empty files
+    private void reset ()
+    {
+        close ();
+        Lib.Ignored (datFile.delete ());
+        Lib.Ignored (idxFile.delete ());
+        try {
+            long fileid = new Random ().nextLong ();
+            createFiles (datFile, idxFile, fileid, MINCAP);
+            open ();
+        } catch (IOException ioe) {
+            // nothing to be done, tiles just won't be saved
+            Log.e (TAG, "error creating tile pack", ioe);
+            close ();
+        }
+    }
+
+    // create empty data and index files
+    private static void createFiles (File datfile, File idxfile, long fileid, int cap)
+            throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile (datfile, "rw")) {
+            raf.setLength (0);
+            raf.writeInt (DATMAGIC);
+            raf.writeInt (VERSION);
+            raf.writeLong (fileid);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile (idxfile, "rw")) {
+            raf.setLength (0);
+            MappedByteBuffer mbb = mapIndex (raf, cap);
+            initIndexHeader (mbb, cap, fileid, DATHDR);
+            mbb.force ();
+        }
+    }
+
+    // map index file with the given capacity, extending it if necessary
+    private static MappedByteBuffer mapIndex (RandomAccessFile raf, int cap)
+            throws IOException
+    {
+        raf.setLength (slotOfs (cap));
+        return raf.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, slotOfs (cap));
+    }
+
+    // fill in header of an index and clear all the slots
+    private static void initIndexHeader (MappedByteBuffer mbb, int cap, long fileid, long dataend)
+    {
+        for (int i = 0; i < slotOfs (cap); i += 8) mbb.putLong (i, 0);
+        mbb.putInt  (IH_MAGIC, IDXMAGIC);
+        mbb.putInt  (IH_VERSION, IDXVERSION);
+        mbb.putInt  (IH_CAPACITY, cap);
+        mbb.putLong (IH_FILEID, fileid);
+        mbb.putLong (IH_DATAEND, dataend);
+    }
+
+    // write a record to a data file
+    private void appendRecord (FileChannel chan, long offset, long key, long time, byte[] data, int ofs, int len)
+            throws IOException
+    {
+        recHdr.clear ();
+        recHdr.putLong (key);
+        recHdr.putLong (time);
+        recHdr.putInt (len);
+        recHdr.flip ();
+        while (recHdr.hasRemaining ()) chan.write (recHdr, offset + recHdr.position ());
+        ByteBuffer bb = ByteBuffer.wrap (data, ofs, len);
+        while (bb.hasRemaining ()) chan.write (bb, offset + RECHDR + bb.position () - ofs);
+    }
+
+    /**************\
+     *  Eviction  *
+    \**************/
+
+    // if over quota, delete least recently read tiles to get 10% under it
+    // the space is recovered by compaction
+    // caller must hold lock
+    private void maybeEvict ()
+    {
+        if ((idx == null) || (idx.getLong (IH_LIVEBYTES) <= quota)) return;
+
+        // get atime and slot number of all live tiles
+        int n = idx.getInt (IH_COUNT);
+        long[] order = new long[n];
+        int[] slots = new int[n];
+        int j = 0;
+        long minatime = Long.MAX_VALUE;
+        long maxatime = Long.MIN_VALUE;
+        for (int slot = 0; (slot < capacity) && (j < n); slot ++) {
+            int so = slotOfs (slot);
+            long k = idx.getLong (so + SL_KEY);
+            if ((k != EMPTY) && (k != DELETED)) {
+                long atime = idx.getLong (so + SL_ATIME);
+                minatime = Math.min (minatime, atime);
+                maxatime = Math.max (maxatime, atime);
+                order[j] = atime;
+                slots[j++] = slot;
+            }
+        }
+
+        // pack as (atime - oldest) << 32 | slot so they sort oldest first without boxing
+        // drop low atime bits if needed to fit in 31 bits, ie, if spread more than 24 days
+        int shift = Math.max (0, 64 - Long.numberOfLeadingZeros (maxatime - minatime) - 31);
+        for (int i = 0; i < j; i ++) {
+            order[i] = ((order[i] - minatime) >> shift << 32) | slots[i];
+        }
+        Arrays.sort (order, 0, j);
+
+        // delete oldest first
+        long target = quota - quota / 10;
+        int nevicted = 0;
+        for (int i = 0; (i < j) && (idx.getLong (IH_LIVEBYTES) > target); i ++) {
+            int so = slotOfs ((int) order[i]);
+            delete (idx.getLong (so + SL_KEY) - 1);
+            nevicted ++;
+        }
+        Log.i (TAG, "tile pack evicted " + nevicted + " tiles");
+    }
+
+    /****************\
+     *  Compaction  *
+    \****************/
+
+    // start compaction thread if more than half the data file is garbage
+    // caller must hold lock
+    private void maybeCompact ()
+    {
+        if ((idx == null) || compacting) return;
+        long dataend = idx.getLong (IH_DATAEND);
+        if ((dataend > COMPACTMIN) && (idx.getLong (IH_LIVEBYTES) * 2 < dataend)) {
+            compacting = true;
+            new Thread () {
+                @Override
+                public void run ()
+                {
+                    setName ("TilePack compaction");
+                    setPriority (MIN_PRIORITY);
+                    try {
+                        compact ();
+                    } catch (IOException ioe) {
+                        Log.w (TAG, "error compacting tile pack", ioe);
+                    } finally {
+                        synchronized (TilePack.this) {
+                            compacting = false;
+                        }
+                    }
+                }
+            }.start ();
+        }
+    }
+
+    // copy live records to new data file then swap it in
+    // most of the copying is done without holding the lock,
+    // anything written in the meantime is copied after getting the lock
+    private void compact ()
+            throws IOException
+    {
+        File newdat = new File (dir, "tiles.dat.new");
+        File newidx = new File (dir, "tiles.idx.new");
+        long fileid = new Random ().nextLong ();
+
+        // get list of live records in data file order
+        long[] oldpacks;
+        long snapend;
+        FileChannel oldchan;
+        synchronized (this) {
+            if (idx == null) return;
+            int n = idx.getInt (IH_COUNT);
+            oldpacks = new long[n];
+            int j = 0;
+            for (int slot = 0; (slot < capacity) && (j < n); slot ++) {
+                int so = slotOfs (slot);
+                long k = idx.getLong (so + SL_KEY);
+                if ((k != EMPTY) && (k != DELETED)) oldpacks[j++] = idx.getLong (so + SL_PACK);
+            }
+            snapend = idx.getLong (IH_DATAEND);
+            oldchan = datChan;
+        }
+        Arrays.sort (oldpacks);
+
+        // copy them to new file, old file is append only so it is safe to read unlocked
+        long[] newofs = new long[oldpacks.length];
+        createFiles (newdat, newidx, fileid, MINCAP);
+        try (RandomAccessFile newraf = new RandomAccessFile (newdat, "rw")) {
+            FileChannel newchan = newraf.getChannel ();
+            ByteBuffer buf = ByteBuffer.allocate (65536);
+            long newend = DATHDR;
+            for (int i = 0; i < oldpacks.length; i ++) {
+                newofs[i] = newend;
+                newend = copyRecord (oldchan, oldpacks[i], newchan, newend, buf);
+            }
+
+            synchronized (this) {
+                if (datChan != oldchan) return;
+
+                // build new index pointing to new file
+                // copy anything written since we started
+                int n = idx.getInt (IH_COUNT);
+                int newcap = MINCAP;
+                while (newcap * 3L < n * 10L) newcap *= 2;
+                try (RandomAccessFile newidxraf = new RandomAccessFile (newidx, "rw")) {
+                    MappedByteBuffer newmap = mapIndex (newidxraf, newcap);
+                    initIndexHeader (newmap, newcap, fileid, DATHDR);
+                    MappedByteBuffer oldmap = idx;
+                    int oldcap = capacity;
+                    idx = newmap;
+                    capacity = newcap;
+                    for (int slot = 0; slot < oldcap; slot ++) {
+                        int so = slotOfs (slot);
+                        long k = oldmap.getLong (so + SL_KEY);
+                        if ((k == EMPTY) || (k == DELETED)) continue;
+                        long pack = oldmap.getLong (so + SL_PACK);
+                        long ofs;
+                        if ((pack >>> 24) < snapend) {
+                            int i = Arrays.binarySearch (oldpacks, pack);
+                            if (i < 0) continue;
+                            ofs = newofs[i];
+                        } else {
+                            ofs = newend;
+                            newend = copyRecord (oldchan, pack, newchan, newend, buf);
+                        }
+                        setSlot (k - 1, (ofs << 24) | (pack & 0xFFFFFF), oldmap.getLong (so + SL_TIME),
+                                oldmap.getLong (so + SL_ATIME));
+                    }
+                    idx.putLong (IH_DATAEND, newend);
+                    newchan.force (false);
+                    idx.force ();
+                }
+
+                // swap new files in place of old ones
+                long oldsize = snapend;
+                close ();
+                if (! newdat.renameTo (datFile) || ! newidx.renameTo (idxFile)) {
+                    throw new IOException ("error renaming compacted tile pack");
+                }
+                try {
+                    open ();
+                } catch (IOException ioe) {
+                    reset ();
+                    throw ioe;
+                }
+                Log.i (TAG, "tile pack compacted " + oldsize + " => " + newend);
+            }
+        } finally {
+            Lib.Ignored (newdat.delete ());
+            Lib.Ignored (newidx.delete ());
+        }
+    }
+
+    // copy a record from one data file to another
+    //  returns offset just past copied record in new file
+    private static long copyRecord (FileChannel oldchan, long pack, FileChannel newchan, long newofs, ByteBuffer buf)
+            throws IOException
+    {
+        long oldofs = pack >>> 24;
+        long len = RECHDR + (pack & 0xFFFFFF);
+        for (long done = 0; done < len;) {
+            buf.clear ();
+            if (buf.remaining () > len - done) buf.limit ((int) (len - done));
+            int rc = oldchan.read (buf, oldofs + done);
+            if (rc <= 0) throw new IOException ("eof copying tile");
+            buf.flip ();
+            while (buf.hasRemaining ()) newchan.write (buf, newofs + done + buf.position ());
+            done += rc;
+        }
+        return newofs + len;
+    }
+
+    /********************\
+     *  Legacy tiles    *
+    \********************/
+
+    // import tiles from streets/<zoom>/<x>/<y>.png files then delete them
+    //  level -1: dir = streets, 0: dir = zoom, 1: dir = x
+    private void importLegacy (File dir, int zoom, int x)
+    {
+        File[] files = dir.listFiles ();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName ();
+            try {
+                if (file.isDirectory ()) {
+                    int n = Integer.parseInt (name);
+                    if (zoom < 0) importLegacy (file, n, -1);
+                    else if (x < 0) importLegacy (file, zoom, n);
+                    Lib.Ignored (file.delete ());
+                } else if ((zoom >= 0) && (x >= 0)) {
+                    if (name.endsWith (".png")) {
+                        int y = Integer.parseInt (name.substring (0, name.length () - 4));
+                        byte[] data = new byte[(int)file.length ()];
+                        try (FileInputStream fis = new FileInputStream (file)) {
+                            int len = 0;
+                            for (int rc; (len < data.length) && ((rc = fis.read (data, len, data.length - len)) > 0);) len += rc;
+                            if (len != data.length) throw new IOException ("short read");
+                        }
+                        long key = ((long) x << 36) | ((long) y << 8) | zoom;
+                        write (key, data, data.length, file.lastModified ());
+                    }
+                    Lib.Ignored (file.delete ());
+                }
+            } catch (NumberFormatException nfe) {
+                // not a tile directory or file, leave it alone
+            } catch (IOException ioe) {
+                Log.w (TAG, "error importing " + file.getPath (), ioe);
+                Lib.Ignored (file.delete ());
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Downloads runway diagram tiles before they are needed,
+ * for the destination airport and airports along the next stretch of track.
+ * Runs in a low priority thread, stops if battery gets low.
+ */
+public class TilePrefetcher {
+    private final static int BATTERYPCT = 30;       // don't prefetch below this battery level
+    private final static int CHECKMS = 60000;       // look for more tiles this often
+    private final static int MINRWYFT = 1000;       // airports along track with runway this long
+    private final static double TRACKNM = 20.0;     // look this far ahead along track
+    private final static double CORRIDORNM = 3.0;   // airports this close to track
+
+    private boolean running;        // gui thread only
+    private long lastcheck;         // gui thread only
+    private MainActivity mainActivity;
+    private OpenStreetMap openStreetMap;
+    private volatile int done;
+    private volatile int total;
+    private Waypt lastwaypt;        // gui thread only
+
+    public TilePrefetcher (MainActivity ma, OpenStreetMap osm)
+    {
+        mainActivity  = ma;
+        openStreetMap = osm;
+    }
+
+    /**
+     * Get progress for display.
+     */
+    public String getProgress ()
+    {
+        return done + "/" + total + (running ? " running" : "");
+    }
+
+    /**
+     * Maybe start prefetching tiles.
+     * Called in gui thread whenever a GPS location is received.
+     */
+    public void update ()
+    {
+        if (running) return;
+        long now = System.currentTimeMillis ();
+        Waypt navwaypt = mainActivity.navWaypt;
+        if ((navwaypt == lastwaypt) && (now - lastcheck < CHECKMS)) return;
+        lastcheck = now;
+        lastwaypt = navwaypt;
+
+        SQLiteDatabase sqldb = mainActivity.downloadThread.getSqlDB ();
+        if (sqldb == null) return;
+
+        // get everything needed from gui thread then start thread going
+        final PrefetchThread pt = new PrefetchThread ();
+        pt.sqldb    = sqldb;
+        pt.snapshot = mainActivity.downloadThread.getSnapshot ();
+        pt.navwaypt = navwaypt;
+        pt.curlat   = mainActivity.curLoc.lat;
+        pt.curlon   = mainActivity.curLoc.lon;
+        pt.moving   = mainActivity.curLoc.speed > MainActivity.gpsMinSpeedMPS;
+        pt.truecrs  = mainActivity.latesttc;
+        pt.cppsi    = mainActivity.rwyDiagView.getCanPixPerSqIn ();
+        running = true;
+        pt.start ();
+    }
+
+    private class PrefetchThread extends Thread {
+        public boolean moving;
+        public double cppsi;
+        public double curlat, curlon;
+        public double truecrs;
+        public SQLiteDatabase sqldb;
+        public Waypt navwaypt;
+        public WayptSnapshot snapshot;
+
+        @Override
+        public void run ()
+        {
+            setName ("TilePrefetcher");
+            setPriority (MIN_PRIORITY);
+            try {
+
+                // destination airport first then airports along track
+                ArrayList<Waypt.AptWaypt> apts = new ArrayList<> ();
+                Waypt.AptWaypt apt = getDestAirport (sqldb, navwaypt);
+                if (apt != null) apts.add (apt);
+                if (moving && (snapshot != null)) {
+                    double endlat = Lib.LatHdgDist2Lat (curlat, truecrs, TRACKNM);
+                    double endlon = Lib.LatLonHdgDist2Lon (curlat, curlon, truecrs, TRACKNM);
+                    getAirportsAlongTrack (snapshot, sqldb, curlat, curlon, endlat, endlon, apts);
+                }
+
+                // get tiles needed to draw their runway diagrams
+                LinkedHashSet<Long> keys = new LinkedHashSet<> ();
+                for (Waypt.AptWaypt a : apts) {
+                    TileRegionDownload.Region r = getAirportRegion (sqldb, a, cppsi);
+                    OpenStreetMap.GetTileKeys (r.southLat, r.northLat, r.westLon, r.eastLon, r.maxZoom, keys);
+                }
+
+                // download any we don't already have
+                total = keys.size ();
+                done  = 0;
+                for (long key : keys) {
+                    if (BandwidthController.isLowBattery (mainActivity, BATTERYPCT)) break;
+                    if (! openStreetMap.DownloadTileBitmap (key, false)) {
+                        openStreetMap.DownloadTileBitmap (key, true);
+                    }
+                    done ++;
+                }
+            } catch (Exception e) {
+                Log.w (MainActivity.TAG, "error prefetching tiles", e);
+            } finally {
+                mainActivity.runOnUiThread (new Runnable () {
+                    @Override
+                    public void run ()
+                    {
+                        running = false;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Get airport that the given nav waypoint is at or belongs to.
+     * @return null if not an airport or localizer
+     */
+    public static Waypt.AptWaypt getDestAirport (SQLiteDatabase sqldb, Waypt navwaypt)
+    {
+        if (navwaypt instanceof Waypt.AptWaypt) {
+            return (Waypt.AptWaypt) navwaypt;
+        }
+        if (navwaypt instanceof Waypt.LocWaypt) {
+            return Waypt.AptWaypt.find (sqldb, ((Waypt.LocWaypt) navwaypt).apticao, true);
+        }
+        return null;
+    }
+
+    /**
+     * Find airports with long enough runway within CORRIDORNM of a course line.
+     * Uses flat-earth distance so good for a few hundred miles at most.
+     */
+    public static void getAirportsAlongTrack (WayptSnapshot snapshot, final SQLiteDatabase sqldb,
+                                              final double beglat, final double beglon,
+                                              final double endlat, final double endlon,
+                                              final ArrayList<Waypt.AptWaypt> apts)
+    {
+        final double coslat = Math.cos (Math.toRadians ((beglat + endlat) / 2.0));
+        final double ex = (endlon - beglon) * coslat;
+        final double ey =  endlat - beglat;
+        final ArrayList<String> idents = new ArrayList<> ();
+        double margin = CORRIDORNM / Lib.NMPerDeg;
+        double lonmargin = margin / coslat;
+        snapshot.query (Math.min (beglat, endlat) - margin, Math.max (beglat, endlat) + margin,
+                Math.min (beglon, endlon) - lonmargin, Math.max (beglon, endlon) + lonmargin,
+                new WayptSnapshot.Visitor () {
+                    @Override
+                    public void visit (WayptSnapshot snap, int i)
+                    {
+                        if ((snap.getType (i) == WayptSnapshot.TYPE_APT) && (snap.getRwyFt (i) >= MINRWYFT)) {
+                            double px = (snap.getLon (i) - beglon) * coslat;
+                            double py =  snap.getLat (i) - beglat;
+                            double t  = (px * ex + py * ey) / (ex * ex + ey * ey);
+                            t = Math.max (0.0, Math.min (1.0, t));
+                            double xtknm = Math.hypot (px - t * ex, py - t * ey) * Lib.NMPerDeg;
+                            if (xtknm <= CORRIDORNM) idents.add (snap.getIdent (i));
+                        }
+                    }
+                });
+        for (String ident : idents) {
+            Waypt.AptWaypt apt = Waypt.AptWaypt.find (sqldb, ident, true);
+            if ((apt != null) && ! apts.contains (apt)) apts.add (apt);
+        }
+    }
+
+    /**
+     * Get area and zoom level the runway diagram page would draw for an airport.
+     * @param cppsi = runway diagram canvas pixels per square inch
+     */
+    public static TileRegionDownload.Region getAirportRegion (SQLiteDatabase sqldb, Waypt.AptWaypt apt, double cppsi)
+    {
+        // same radius as RwyDiagView computes
+        double radiusnm = 0.25;
+        try (Cursor cursor = sqldb.rawQuery (
+                "SELECT rwy_beglat,rwy_beglon,rwy_endlat,rwy_endlon FROM runways WHERE rwy_icaoid=?",
+                new String[] { apt.ident })) {
+            if (cursor.moveToFirst ()) do {
+                radiusnm = Math.max (radiusnm, Lib.LatLonDist (apt.lat, apt.lon, cursor.getDouble (0), cursor.getDouble (1)));
+                radiusnm = Math.max (radiusnm, Lib.LatLonDist (apt.lat, apt.lon, cursor.getDouble (2), cursor.getDouble (3)));
+            } while (cursor.moveToNext ());
+        }
+        double radnm = RwyDiagView.diagramRadiusNM (radiusnm);
+
+        // north-up box the size of the diagram
+        BoxPixelMapper pmap = new BoxPixelMapper ();
+        pmap.canvasWidth    = OBSDialView.INNARDSRADIUS * 2;
+        pmap.canvasHeight   = OBSDialView.INNARDSRADIUS * 2;
+        pmap.canPixPerSqIn  = cppsi;
+        pmap.canvasNorthLat = Lib.LatHdgDist2Lat (apt.lat, 0.0, radnm);
+        pmap.canvasSouthLat = Lib.LatHdgDist2Lat (apt.lat, 180.0, radnm);
+        pmap.canvasEastLon  = Lib.LatLonHdgDist2Lon (apt.lat, apt.lon, 90.0, radnm);
+        pmap.canvasWestLon  = Lib.LatLonHdgDist2Lon (apt.lat, apt.lon, 270.0, radnm);
+        pmap.lastTlLat = pmap.canvasNorthLat;
+        pmap.lastTlLon = pmap.canvasWestLon;
+        pmap.lastTrLat = pmap.canvasNorthLat;
+        pmap.lastTrLon = pmap.canvasEastLon;
+        pmap.lastBlLat = pmap.canvasSouthLat;
+        pmap.lastBlLon = pmap.canvasWestLon;
+        pmap.lastBrLat = pmap.canvasSouthLat;
+        pmap.lastBrLon = pmap.canvasEastLon;
+
+        TileRegionDownload.Region r = new TileRegionDownload.Region ();
+        r.southLat = pmap.canvasSouthLat;
+        r.northLat = pmap.canvasNorthLat;
+        r.westLon  = pmap.canvasWestLon;
+        r.eastLon  = pmap.canvasEastLon;
+        r.minZoom  = r.maxZoom = OpenStreetMap.GetZoom (pmap);
+        return r;
+    }
+
+    // maps lat/lon linearly to a north-up canvas
+    private static class BoxPixelMapper extends PixelMapper {
+        @Override
+        public void LatLon2CanPixAprox (double lat, double lon, PointD pix)
+        {
+            pix.x = (lon - canvasWestLon) / (canvasEastLon - canvasWestLon) * canvasWidth;
+            pix.y = (canvasNorthLat - lat) / (canvasNorthLat - canvasSouthLat) * canvasHeight;
+        }
+    }
+}
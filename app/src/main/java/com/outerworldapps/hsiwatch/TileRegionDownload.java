@@ -0,0 +1,241 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Downloads all map tiles for a list of lat/lon boxes and zoom levels
+ * so runway diagrams can be drawn without network access.
+ * The job is saved to a file so it resumes if the app is restarted.
+ */
+public class TileRegionDownload {
+    private final static String TAG = MainActivity.TAG;
+    private final static int BATTERYPCT = 30;       // pause when battery below this and not charging
+    private final static int PAUSEMS = 60000;       // recheck battery this often when paused
+    private final static int STATUSMS = 1000;       // update status display this often
+
+    public static class Region {
+        public double southLat, northLat, westLon, eastLon;
+        public int minZoom, maxZoom;
+    }
+
+    private File jobFile;
+    private MainActivity mainActivity;
+    private OpenStreetMap openStreetMap;
+    private volatile JobThread thread;              // currently running job, null if none
+    private volatile JobThread statusJob;           // job being shown in status, null if none
+    private volatile String state = "idle";         // status if no job to show
+
+    public TileRegionDownload (MainActivity ma, OpenStreetMap osm)
+    {
+        mainActivity  = ma;
+        openStreetMap = osm;
+        jobFile = new File (ma.getFilesDir (), "tileregion.job");
+    }
+
+    /**
+     * Resume a job that was interrupted by app being stopped.
+     */
+    public void resume ()
+    {
+        synchronized (this) {
+            if ((thread == null) && jobFile.exists ()) {
+                startThread ();
+            }
+        }
+    }
+
+    /**
+     * Start downloading tiles for the given regions.
+     * Replaces any job already in progress.
+     */
+    public synchronized void start (ArrayList<Region> regions)
+    {
+        try {
+            BufferedWriter bw = new BufferedWriter (new FileWriter (jobFile.getPath () + ".tmp"));
+            for (Region r : regions) {
+                bw.write (r.southLat + " " + r.northLat + " " + r.westLon + " " + r.eastLon + " " +
+                        r.minZoom + " " + r.maxZoom + "\n");
+            }
+            bw.close ();
+            if (! new File (jobFile.getPath () + ".tmp").renameTo (jobFile)) {
+                throw new IOException ("rename failed");
+            }
+        } catch (IOException ioe) {
+            Log.e (TAG, "exception writing " + jobFile.getPath (), ioe);
+            mainActivity.showToastLong ("error writing " + jobFile.getPath () + ": " + ioe.getMessage ());
+            return;
+        }
+
+        // old thread sees it is no longer current and exits
+        startThread ();
+    }
+
+    // caller must hold lock
+    private void startThread ()
+    {
+        thread = statusJob = new JobThread ();
+        thread.start ();
+    }
+
+    /**
+     * Stop downloading and forget the job.
+     */
+    public void cancel ()
+    {
+        synchronized (this) {
+            thread = null;
+            statusJob = null;
+            Lib.Ignored (jobFile.delete ());
+        }
+        state = "cancelled";
+        updateStatus ();
+    }
+
+    /**
+     * Get status string for display.
+     */
+    public String getStatus ()
+    {
+        JobThread job = statusJob;
+        if (job == null) return state;
+        String st = job.state;
+        if (job.tilesTotal > 0) {
+            st += " " + job.tilesDone + "/" + job.tilesTotal + " tiles, " +
+                    job.tilesLoaded + " new " + (job.bytesLoaded + 512) / 1024 + "KB, " +
+                    (job.bytesHave + job.bytesLoaded + 512) / 1024 + "KB total";
+            if (job.tilesFailed > 0) st += ", " + job.tilesFailed + " failed";
+        }
+        return st;
+    }
+
+    // post status to the database update page
+    private void updateStatus ()
+    {
+        mainActivity.runOnUiThread (new Runnable () {
+            @Override
+            public void run ()
+            {
+                mainActivity.menuMainPage.updDBMainPage.updateTileStatus ();
+            }
+        });
+    }
+
+    // progress is kept per job so an old job still winding down doesn't mess up a new one's
+    private class JobThread extends Thread {
+        private long lastStatus;
+
+        public volatile int tilesDone;              // tiles checked so far
+        public volatile int tilesTotal;             // number of distinct tiles in job
+        public volatile int tilesLoaded;            // tiles downloaded so far
+        public volatile int tilesFailed;            // tiles that could not be downloaded
+        public volatile long bytesHave;             // bytes of tiles that were already on flash
+        public volatile long bytesLoaded;           // bytes of tiles downloaded
+        public volatile String state = "starting";
+
+        @Override
+        public void run ()
+        {
+            setName ("TileRegionDownload");
+            setPriority (MIN_PRIORITY);
+            try {
+
+                // read job file and get list of distinct tiles, regions can overlap
+                LinkedHashSet<Long> keys = new LinkedHashSet<> ();
+                BufferedReader br = new BufferedReader (new FileReader (jobFile));
+                try {
+                    for (String line; (line = br.readLine ()) != null; ) {
+                        String[] parts = line.split (" ");
+                        double southLat = Double.parseDouble (parts[0]);
+                        double northLat = Double.parseDouble (parts[1]);
+                        double westLon  = Double.parseDouble (parts[2]);
+                        double eastLon  = Double.parseDouble (parts[3]);
+                        int maxZoom = Integer.parseInt (parts[5]);
+                        for (int zoom = Integer.parseInt (parts[4]); zoom <= maxZoom; zoom ++) {
+                            OpenStreetMap.GetTileKeys (southLat, northLat, westLon, eastLon, zoom, keys);
+                        }
+                    }
+                } finally {
+                    br.close ();
+                }
+
+                if (thread != this) return;
+                tilesTotal = keys.size ();
+                state = "downloading";
+                updateStatus ();
+
+                // tiles already on flash are skipped so resuming just rescans
+                for (long key : keys) {
+                    while (BandwidthController.isLowBattery (mainActivity, BATTERYPCT)) {
+                        state = "paused, low battery";
+                        updateStatus ();
+                        Thread.sleep (PAUSEMS);
+                        if (thread != this) return;
+                    }
+                    state = "downloading";
+                    if (thread != this) return;
+                    if (openStreetMap.DownloadTileBitmap (key, false)) {
+                        bytesHave += openStreetMap.GetTileSize (key);
+                    } else if (openStreetMap.DownloadTileBitmap (key, true)) {
+                        bytesLoaded += openStreetMap.GetTileSize (key);
+                        tilesLoaded ++;
+                    } else {
+                        tilesFailed ++;
+                    }
+                    tilesDone ++;
+                    long now = System.currentTimeMillis ();
+                    if (now - lastStatus >= STATUSMS) {
+                        lastStatus = now;
+                        updateStatus ();
+                    }
+                }
+
+                // if some failed, leave job file so they are retried next time app starts
+                // if replaced by a new job, the job file is the new job's
+                synchronized (TileRegionDownload.this) {
+                    if (thread != this) return;
+                    if (tilesFailed == 0) Lib.Ignored (jobFile.delete ());
+                }
+                state = "done";
+            } catch (InterruptedException ie) {
+                Log.d (TAG, "tile download interrupted");
+            } catch (Exception e) {
+                Log.e (TAG, "exception downloading tiles", e);
+                state = "error: " + e.getMessage ();
+            } finally {
+                synchronized (TileRegionDownload.this) {
+                    if (thread == this) thread = null;
+                }
+                updateStatus ();
+            }
+        }
+    }
+}
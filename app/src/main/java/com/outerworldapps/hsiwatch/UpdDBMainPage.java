@@ -23,16 +23,23 @@ package com.outerworldapps.hsiwatch;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.Button;
 import android.widget.RadioButton;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+
 /**
  * Contains a BACK button, and database update selection buttons.
  */
 public class UpdDBMainPage {
+    private final static int FIXAGEMS = 600000;     // route tiles start at current location if fix this recent
+    private final static int[] tileQuotasMB = { 64, 128, 256, 512, 1024 };
+
+    private Button       tileQuotaButton;
     private MainActivity mainActivity;
     private RadioButton  useFAAdbButton;
     private RadioButton  useOAdbButton;
@@ -109,12 +116,45 @@ public class UpdDBMainPage {
                 }
             });
 
+            // download map tiles for runway diagrams along route to destination
+            Button downloadTiles = upddbPageView.findViewById (R.id.downloadTiles);
+            downloadTiles.setOnClickListener (new View.OnClickListener () {
+                @Override
+                public void onClick (View view)
+                {
+                    downloadRouteTiles ();
+                }
+            });
+
+            // step through map tile disk quotas
+            tileQuotaButton = upddbPageView.findViewById (R.id.tileQuota);
+            tileQuotaButton.setOnClickListener (new View.OnClickListener () {
+                @Override
+                public void onClick (View view)
+                {
+                    SharedPreferences prefs = mainActivity.getPreferences (Context.MODE_PRIVATE);
+                    int quota = prefs.getInt ("tileQuotaMB", OpenStreetMap.DEFQUOTAMB);
+                    int i = 0;
+                    while ((i < tileQuotasMB.length) && (tileQuotasMB[i] <= quota)) i ++;
+                    quota = tileQuotasMB[i%tileQuotasMB.length];
+
+                    // wrapping around to a smaller quota than what is in use deletes tiles
+                    long used = mainActivity.rwyDiagView.openStreetMap.GetTileBytes ();
+                    if (quota * 1048576L < used) {
+                        confirmTileQuota (quota, used);
+                    } else {
+                        setTileQuota (quota);
+                    }
+                }
+            });
+
             // set up whichever database is selected by the preferences
             setRadioButtons ();
         }
 
         // display expiration dates of all databases
         updateExpirations ();
+        updateTileStatus ();
 
         // display the page
         mainActivity.showMainPage (upddbPageView);
@@ -141,6 +181,122 @@ public class UpdDBMainPage {
         useOAdbButton.setChecked (dbselected.equals ("oa"));
     }
 
+    // start downloading tiles for destination airport and airports along the way
+    private void downloadRouteTiles ()
+    {
+        final SQLiteDatabase sqldb = mainActivity.downloadThread.getSqlDB ();
+        final WayptSnapshot snapshot = mainActivity.downloadThread.getSnapshot ();
+        final Waypt navwaypt = mainActivity.navWaypt;
+        if ((sqldb == null) || (snapshot == null) || (navwaypt == null)) {
+            mainActivity.showToast ("select destination first");
+            return;
+        }
+        // without a recent fix curLoc is stale or still 0,0, so do just the destination
+        final boolean havefix = System.currentTimeMillis () - mainActivity.gpslastheardat < FIXAGEMS;
+        final double curlat = mainActivity.curLoc.lat;
+        final double curlon = mainActivity.curLoc.lon;
+        final double cppsi  = mainActivity.rwyDiagView.getCanPixPerSqIn ();
+
+        // database lookups done in background then job started in gui thread
+        new Thread () {
+            @Override
+            public void run ()
+            {
+                ArrayList<Waypt.AptWaypt> apts = new ArrayList<> ();
+                Waypt.AptWaypt apt = TilePrefetcher.getDestAirport (sqldb, navwaypt);
+                if (apt != null) apts.add (apt);
+                if (havefix) {
+                    TilePrefetcher.getAirportsAlongTrack (snapshot, sqldb, curlat, curlon, navwaypt.lat, navwaypt.lon, apts);
+                }
+                final ArrayList<TileRegionDownload.Region> regions = new ArrayList<> (apts.size ());
+                for (Waypt.AptWaypt a : apts) {
+                    TileRegionDownload.Region r = TilePrefetcher.getAirportRegion (sqldb, a, cppsi);
+
+                    // also get next lower zoom level used while waiting for tiles to open
+                    if (r.minZoom > 0) r.minZoom --;
+                    regions.add (r);
+                }
+                mainActivity.runOnUiThread (new Runnable () {
+                    @Override
+                    public void run ()
+                    {
+                        mainActivity.showToast (regions.size () + " airports" + (havefix ? "" : ", no GPS fix for route"));
+                        mainActivity.rwyDiagView.tileRegionDownload.start (regions);
+                    }
+                });
+            }
+        }.start ();
+    }
+
+    // new quota would delete tiles, make sure they really want to
+    @SuppressLint({ "InflateParams", "SetTextI18n" })
+    private void confirmTileQuota (final int quota, long used)
+    {
+        LayoutInflater layoutInflater = mainActivity.getLayoutInflater ();
+        View tilequotaynPage = layoutInflater.inflate (R.layout.tilequotayn_page, null);
+        TextView tilequotaynText = tilequotaynPage.findViewById (R.id.tilequotaynText);
+        tilequotaynText.setText ("to " + quota + "MB, deletes " + ((used + 524288) / 1048576 - quota * 9 / 10) + "MB of tiles");
+
+        // if they click YES-SHRINK, set the new quota then go back to update database page
+        Button tilequotaynShrink = tilequotaynPage.findViewById (R.id.tilequotaynShrink);
+        tilequotaynShrink.setOnClickListener (new View.OnClickListener () {
+            @Override
+            public void onClick (View view) {
+                setTileQuota (quota);
+                mainActivity.onBackPressed ();
+            }
+        });
+
+        // if they click NO-KEEP, then just go back to update database page
+        Button tilequotaynKeep = tilequotaynPage.findViewById (R.id.tilequotaynKeep);
+        tilequotaynKeep.setOnClickListener (new View.OnClickListener () {
+            @Override
+            public void onClick (View view) {
+                mainActivity.onBackPressed ();
+            }
+        });
+
+        mainActivity.showMainPage (tilequotaynPage);
+    }
+
+    // save new tile quota and apply it
+    // any tiles to be deleted are deleted in a thread
+    private void setTileQuota (final int quota)
+    {
+        SharedPreferences prefs = mainActivity.getPreferences (Context.MODE_PRIVATE);
+        SharedPreferences.Editor editr = prefs.edit ();
+        editr.putInt ("tileQuotaMB", quota);
+        editr.apply ();
+        new Thread () {
+            @Override
+            public void run ()
+            {
+                setName ("SetTileQuota");
+                mainActivity.rwyDiagView.openStreetMap.SetTileQuota (quota);
+                mainActivity.runOnUiThread (new Runnable () {
+                    @Override
+                    public void run ()
+                    {
+                        updateTileStatus ();
+                    }
+                });
+            }
+        }.start ();
+    }
+
+    // tile download made some progress, update status string being displayed
+    public void updateTileStatus ()
+    {
+        if (upddbPageView != null) {
+            TextView tileStatus = upddbPageView.findViewById (R.id.tileStatus);
+            tileStatus.setText (mainActivity.rwyDiagView.tileRegionDownload.getStatus ());
+            SharedPreferences prefs = mainActivity.getPreferences (Context.MODE_PRIVATE);
+            int quota = prefs.getInt ("tileQuotaMB", OpenStreetMap.DEFQUOTAMB);
+            long used = mainActivity.rwyDiagView.openStreetMap.GetTileBytes ();
+            tileQuotaButton.setText ("tile quota " + quota + "MB (" + (used + 524288) / 1048576 + "MB used)");
+        }
+    }
+
     // a new database was just downloaded, update the expiration date strings being displayed
     public void updateExpirations ()
     {
@@ -23,7 +23,7 @@ package com.outerworldapps.hsiwatch;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.hardware.GeomagneticField;
+import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.BufferedReader;
@@ -32,6 +32,8 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.TreeMap;
 
 import static com.outerworldapps.hsiwatch.MainActivity.TAG;
@@ -57,18 +59,158 @@ public abstract class Waypt {
 
     protected double magvar;  // at waypoint (NaN until computed)
 
+    // cache of waypoints resolved from the database
+    // - keyed by database version (its path) and ident
+    // - unknown idents are cached as notFound so they don't run all the queries again
+    // - cleared by clearCache() whenever a different database is opened
+    private final static int CACHESIZE = 64;
+    private final static Waypt notFound = new Waypt () { };
+    private static long cacheHits;
+    private static long cacheMisses;
+    private final static LinkedHashMap<String,Waypt> wayptCache =
+            new LinkedHashMap<String,Waypt> (CACHESIZE * 2, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<String,Waypt> eldest)
+        {
+            return size () > CACHESIZE;
+        }
+    };
+
     public static Waypt find (Context ctx, SQLiteDatabase sqldb, String ident, LatLon refll)
     {
+        // user waypoints can be edited at any time so always look them up directly
         Waypt waypt = UserWaypt.find (ctx, ident);
-        if (waypt == null) waypt = AptWaypt.find (sqldb, ident, true);
-        if (waypt == null) waypt = FixWaypt.find (sqldb, ident);
-        if (waypt == null) waypt = LocWaypt.find (sqldb, ident);
-        if (waypt == null) waypt = NavWaypt.find (sqldb, ident, refll);
-        if (waypt == null) waypt = RwyWaypt.find (sqldb, ident);
-        if (waypt == null) waypt = AptWaypt.find (sqldb, ident, false);
+        if (waypt != null) return waypt;
+
+        // see if already resolved from this database
+        String key = sqldb.getPath () + ":" + ident;
+        synchronized (wayptCache) {
+            waypt = wayptCache.get (key);
+            if (waypt != null) {
+                cacheHits ++;
+                return (waypt == notFound) ? null : waypt;
+            }
+            cacheMisses ++;
+        }
+
+        // not cached, search the database tables
+        waypt = resolve (sqldb, ident, refll);
+
+        // duplicated navaid idents resolve to whichever is closest to refll so can't be cached
+        if (! (waypt instanceof NavWaypt) || ! ((NavWaypt) waypt).ambiguous) {
+            synchronized (wayptCache) {
+                wayptCache.put (key, (waypt == null) ? notFound : waypt);
+            }
+        }
         return waypt;
     }
 
+    // resolver query, searches all the tables in one round trip
+    // - each SELECT returns its table's columns padded out to NRESCOLS
+    //   followed by a type tag giving the search priority
+    // - column numbers within each SELECT match what the per-type fromCursor() expects
+    // - the SQL string never changes so SQLite compiles it once per opened database
+    //   and rawQuery() finds it in the connection's prepared statement cache
+    private final static int NRESCOLS = 15;
+    private final static int RES_APTICAO = 1;
+    private final static int RES_FIX     = 2;
+    private final static int RES_LOC     = 3;
+    private final static int RES_NAV     = 4;
+    private final static int RES_RWY1    = 5;
+    private final static int RES_RWY2    = 6;
+    private final static int RES_APTFAA  = 7;
+    private final static String resolvesql = buildResolveSql ();
+
+    private static String buildResolveSql ()
+    {
+        String rwywhere = "(apt_icaoid=? OR apt_faaid=?) AND rwy_faaid=apt_faaid AND (rwy_number=? OR rwy_number=?)";
+        return  resolveSelect (RES_APTICAO, AptWaypt.aptcols, "airports", "apt_icaoid=?") +
+                " UNION ALL " +
+                resolveSelect (RES_FIX,     FixWaypt.fixcols, "fixes", "fix_name=?") +
+                " UNION ALL " +
+                resolveSelect (RES_LOC,     LocWaypt.loccols, "localizers,airports", LocWaypt.locwhere) +
+                " UNION ALL " +
+                resolveSelect (RES_NAV,     NavWaypt.navcols, "navaids", "nav_faaid=?") +
+                " UNION ALL " +
+                resolveSelect (RES_RWY1,    RwyWaypt.rwycols, "runways,airports", rwywhere) +
+                " UNION ALL " +
+                resolveSelect (RES_RWY2,    RwyWaypt.rwycols, "runways,airports", rwywhere) +
+                " UNION ALL " +
+                resolveSelect (RES_APTFAA,  AptWaypt.aptcols, "airports", "apt_faaid=?") +
+                " ORDER BY " + (NRESCOLS + 1);
+    }
+
+    private static String resolveSelect (int type, String[] cols, String tables, String where)
+    {
+        StringBuilder sb = new StringBuilder ("SELECT ");
+        for (String col : cols) {
+            sb.append (col);
+            sb.append (',');
+        }
+        for (int i = cols.length; i < NRESCOLS; i ++) {
+            sb.append ("NULL,");
+        }
+        sb.append (type);
+        sb.append (" FROM ");
+        sb.append (tables);
+        sb.append (" WHERE ");
+        sb.append (where);
+        return sb.toString ();
+    }
+
+    // look up waypoint in database in priority order:
+    //  airport icaoid, fix, localizer, navaid, runway, airport faaid
+    private static Waypt resolve (SQLiteDatabase sqldb, String ident, LatLon refll)
+    {
+        // localizers are always I-<something>
+        // bind a blank if not a localizer ident so it won't match anything
+        String locid = "";
+        if (ident.startsWith ("I")) {
+            locid = ident.startsWith ("I-") ? ident : "I-" + ident.substring (1);
+        }
+
+        // runways are <aptid>.<rwyno> or <aptid><rwyno> with a 3 or 4 char <aptid>
+        String[] binds = new String[] { ident, ident, locid, ident, "", "", "", "", "", "", "", "", ident };
+        int i = ident.indexOf ('.');
+        if (i >= 0) {
+            RwyWaypt.setBinds (binds, 4, ident.substring (0, i), ident.substring (++ i));
+        } else {
+            i = ident.length ();
+            if (i >= 4) RwyWaypt.setBinds (binds, 4, ident.substring (0, 3), ident.substring (3));
+            if (i >= 5) RwyWaypt.setBinds (binds, 8, ident.substring (0, 4), ident.substring (4));
+        }
+
+        // first row found is the highest priority match
+        try (Cursor cursor = sqldb.rawQuery (resolvesql, binds)) {
+            if (! cursor.moveToFirst ()) return null;
+            switch (cursor.getInt (NRESCOLS)) {
+                case RES_APTICAO:
+                case RES_APTFAA: return AptWaypt.fromCursor (cursor);
+                case RES_FIX:    return FixWaypt.fromCursor (cursor, ident);
+                case RES_LOC:    return LocWaypt.fromCursor (cursor, locid);
+                case RES_NAV:    return NavWaypt.fromCursor (cursor, ident, refll);
+                default:         return RwyWaypt.fromCursor (cursor);
+            }
+        }
+    }
+
+    // database is being switched, forget everything resolved from the old one
+    public static void clearCache ()
+    {
+        synchronized (wayptCache) {
+            Log.d (TAG, "Waypt.clearCache: " + getCacheStats ());
+            wayptCache.clear ();
+        }
+    }
+
+    // get cache hit/miss counts for display
+    public static String getCacheStats ()
+    {
+        synchronized (wayptCache) {
+            return "hits=" + cacheHits + " misses=" + cacheMisses + " size=" + wayptCache.size ();
+        }
+    }
+
     // get mode associated with the waypoint type
     // should match what autoTune() does
     public NavDialView.Mode getInitialMode ()
@@ -203,10 +345,7 @@ public abstract class Waypt {
     {
         if (Double.isNaN (magvar)) {
             if (! Double.isNaN (elev)) refaltm = elev / Lib.FtPerM;
-            GeomagneticField gmf = new GeomagneticField (
-                    (float) lat, (float) lon, (float) refaltm,
-                    System.currentTimeMillis ());
-            magvar = - gmf.getDeclination ();
+            magvar = MagVarGrid.get (lat, lon, refaltm, System.currentTimeMillis ());
         }
         return magvar;
     }
@@ -360,30 +499,37 @@ public abstract class Waypt {
         private final static String[] aptcols = new String[] {
                 "apt_icaoid", "apt_lat", "apt_lon", "apt_name", "apt_desc1", "apt_elev", "apt_faaid", "apt_desc2" };
 
+        private final static String icaosql = "SELECT " + TextUtils.join (",", aptcols) + " FROM airports WHERE apt_icaoid=?";
+        private final static String faasql  = "SELECT " + TextUtils.join (",", aptcols) + " FROM airports WHERE apt_faaid=?";
+
         public String faaid;
         public String desc2;
 
         public static AptWaypt find (SQLiteDatabase sqldb, String ident, boolean icao)
         {
-            String where = icao ? "apt_icaoid=?" : "apt_faaid=?";
-            try (Cursor cursor = sqldb.query ("airports", aptcols,
-                    where, new String[] { ident }, null, null, null, null)) {
+            try (Cursor cursor = sqldb.rawQuery (icao ? icaosql : faasql, new String[] { ident })) {
                 if (cursor.moveToFirst ()) {
-                    AptWaypt waypt = new AptWaypt ();
-                    waypt.ident   = cursor.getString (0);
-                    waypt.dme_lat = waypt.lat = cursor.getDouble (1);
-                    waypt.dme_lon = waypt.lon = cursor.getDouble (2);
-                    waypt.name    = cursor.getString (3) + "\n" + cursor.getString (4);
-                    waypt.elev    = cursor.getDouble (5);
-                    waypt.faaid   = cursor.getString (6);
-                    waypt.desc2   = cursor.getString (7);
-                    waypt.magvar  = Double.NaN;
-                    waypt.validModes = valgen;
-                    return waypt;
+                    return fromCursor (cursor);
                 }
             }
             return null;
         }
+
+        // make waypoint from aptcols at current cursor row
+        public static AptWaypt fromCursor (Cursor cursor)
+        {
+            AptWaypt waypt = new AptWaypt ();
+            waypt.ident   = cursor.getString (0);
+            waypt.dme_lat = waypt.lat = cursor.getDouble (1);
+            waypt.dme_lon = waypt.lon = cursor.getDouble (2);
+            waypt.name    = cursor.getString (3) + "\n" + cursor.getString (4);
+            waypt.elev    = cursor.getDouble (5);
+            waypt.faaid   = cursor.getString (6);
+            waypt.desc2   = cursor.getString (7);
+            waypt.magvar  = Double.NaN;
+            waypt.validModes = valgen;
+            return waypt;
+        }
     }
 
     /***********\
@@ -393,23 +539,18 @@ public abstract class Waypt {
     public static class FixWaypt extends Waypt {
         private final static String[] fixcols = new String[] { "fix_lat", "fix_lon", "fix_desc" };
 
-        public static FixWaypt find (SQLiteDatabase sqldb, String ident)
+        // make waypoint from fixcols at current cursor row
+        public static FixWaypt fromCursor (Cursor cursor, String ident)
         {
-            try (Cursor cursor = sqldb.query ("fixes", fixcols,
-                    "fix_name=?", new String[] { ident }, null, null, null, null)) {
-                if (cursor.moveToFirst ()) {
-                    FixWaypt waypt = new FixWaypt ();
-                    waypt.ident   = ident;
-                    waypt.dme_lat = waypt.lat = cursor.getDouble (0);
-                    waypt.dme_lon = waypt.lon = cursor.getDouble (1);
-                    waypt.name    = cursor.getString (2);
-                    waypt.elev    = Double.NaN;
-                    waypt.magvar  = Double.NaN;
-                    waypt.validModes = valgen;
-                    return waypt;
-                }
-            }
-            return null;
+            FixWaypt waypt = new FixWaypt ();
+            waypt.ident   = ident;
+            waypt.dme_lat = waypt.lat = cursor.getDouble (0);
+            waypt.dme_lon = waypt.lon = cursor.getDouble (1);
+            waypt.name    = cursor.getString (2);
+            waypt.elev    = Double.NaN;
+            waypt.magvar  = Double.NaN;
+            waypt.validModes = valgen;
+            return waypt;
         }
     }
 
@@ -440,34 +581,28 @@ public abstract class Waypt {
                 "loc_thdg", "loc_elev", "apt_name", "dme_lat", "dme_lon",
                 "apt_elev", "loc_type", "loc_rwyid", "apt_icaoid" };
 
-        public static LocWaypt find (SQLiteDatabase sqldb, String ident)
+        private final static String locwhere = "loc_faaid=? AND apt_faaid=loc_aptfid";
+
+        // make waypoint from loccols at current cursor row
+        public static LocWaypt fromCursor (Cursor cursor, String ident)
         {
-            if (! ident.startsWith ("I")) return null;
-            if (! ident.startsWith ("I-")) ident = "I-" + ident.substring (1);
-            try (Cursor cursor = sqldb.query ("localizers,airports", loccols,
-                    "loc_faaid=? AND apt_faaid=loc_aptfid",
-                    new String[] { ident }, null, null, null, null)) {
-                if (cursor.moveToFirst ()) {
-                    LocWaypt waypt = new LocWaypt ();
-                    waypt.ident   = ident;
-                    waypt.lat     = cursor.getDouble (0);
-                    waypt.lon     = cursor.getDouble (1);
-                    waypt.gs_elev = cursor.isNull (2) ? Double.NaN : cursor.getDouble (2);
-                    waypt.gs_tilt = cursor.isNull (3) ? Double.NaN : cursor.getDouble (3);
-                    waypt.gs_lat  = cursor.getDouble (4);
-                    waypt.gs_lon  = cursor.getDouble (5);
-                    waypt.thdg    = cursor.getDouble (6);
-                    waypt.elev    = cursor.isNull (7) ? cursor.getDouble (11) : cursor.getDouble (7);
-                    waypt.name    = cursor.getString (12) + " RW " + cursor.getString (13) + '\n' + cursor.getString (8);
-                    waypt.apticao = cursor.getString (14);
-                    waypt.dme_lat = cursor.isNull  (9) ? waypt.lat : cursor.getDouble  (9);
-                    waypt.dme_lon = cursor.isNull (10) ? waypt.lon : cursor.getDouble (10);
-                    waypt.magvar  = Double.NaN;
-                    waypt.validModes = Double.isNaN (waypt.gs_elev) ? valngs : valwgs;
-                    return waypt;
-                }
-            }
-            return null;
+            LocWaypt waypt = new LocWaypt ();
+            waypt.ident   = ident;
+            waypt.lat     = cursor.getDouble (0);
+            waypt.lon     = cursor.getDouble (1);
+            waypt.gs_elev = cursor.isNull (2) ? Double.NaN : cursor.getDouble (2);
+            waypt.gs_tilt = cursor.isNull (3) ? Double.NaN : cursor.getDouble (3);
+            waypt.gs_lat  = cursor.getDouble (4);
+            waypt.gs_lon  = cursor.getDouble (5);
+            waypt.thdg    = cursor.getDouble (6);
+            waypt.elev    = cursor.isNull (7) ? cursor.getDouble (11) : cursor.getDouble (7);
+            waypt.name    = cursor.getString (12) + " RW " + cursor.getString (13) + '\n' + cursor.getString (8);
+            waypt.apticao = cursor.getString (14);
+            waypt.dme_lat = cursor.isNull  (9) ? waypt.lat : cursor.getDouble  (9);
+            waypt.dme_lon = cursor.isNull (10) ? waypt.lon : cursor.getDouble (10);
+            waypt.magvar  = Double.NaN;
+            waypt.validModes = Double.isNaN (waypt.gs_elev) ? valngs : valwgs;
+            return waypt;
         }
 
         public double gs_elev;
@@ -559,35 +694,36 @@ public abstract class Waypt {
         private final static String[] navcols = new String[] { "nav_lat", "nav_lon", "nav_name",
                 "nav_magvar", "nav_type", "nav_elev" };
 
-        public static NavWaypt find (SQLiteDatabase sqldb, String ident, LatLon refll)
+        // make waypoint from navcols at current and following resolver rows
+        // there may be several navaids with the same ident so pick the one closest to refll
+        public static NavWaypt fromCursor (Cursor cursor, String ident, LatLon refll)
         {
-            try (Cursor cursor = sqldb.query ("navaids", navcols,
-                    "nav_faaid=?", new String[] { ident }, null, null, null, null)) {
-                if (cursor.moveToFirst ()) {
-                    double bestnm = 999999;
-                    NavWaypt bestwp = new NavWaypt ();
-                    do {
-                        double lat = cursor.getDouble (0);
-                        double lon = cursor.getDouble (1);
-                        double distnm = Lib.LatLonDist (lat, lon, refll.lat, refll.lon);
-                        if (bestnm > distnm) {
-                            bestnm = distnm;
-                            bestwp.ident   = ident;
-                            bestwp.dme_lat = bestwp.lat = lat;
-                            bestwp.dme_lon = bestwp.lon = lon;
-                            bestwp.name    = cursor.getString (4) + " " + cursor.getString (2);
-                            bestwp.magvar  = cursor.getInt (3);
-                            bestwp.isndb   = cursor.getString (4).contains ("NDB");
-                            bestwp.elev    = cursor.getDouble (5);
-                            bestwp.validModes = valgen;
-                        }
-                    } while (cursor.moveToNext ());
-                    return bestwp;
+            double bestnm = 999999;
+            NavWaypt bestwp = new NavWaypt ();
+            int nrows = 0;
+            do {
+                if (cursor.getInt (NRESCOLS) != RES_NAV) break;
+                nrows ++;
+                double lat = cursor.getDouble (0);
+                double lon = cursor.getDouble (1);
+                double distnm = Lib.LatLonDist (lat, lon, refll.lat, refll.lon);
+                if (bestnm > distnm) {
+                    bestnm = distnm;
+                    bestwp.ident   = ident;
+                    bestwp.dme_lat = bestwp.lat = lat;
+                    bestwp.dme_lon = bestwp.lon = lon;
+                    bestwp.name    = cursor.getString (4) + " " + cursor.getString (2);
+                    bestwp.magvar  = cursor.getInt (3);
+                    bestwp.isndb   = cursor.getString (4).contains ("NDB");
+                    bestwp.elev    = cursor.getDouble (5);
+                    bestwp.validModes = valgen;
                 }
-            }
-            return null;
+            } while (cursor.moveToNext ());
+            bestwp.ambiguous = nrows > 1;
+            return bestwp;
         }
 
+        private boolean ambiguous;  // more than one navaid with this ident
         private boolean isndb;
 
         // get mode associated with the waypoint type
@@ -626,62 +762,46 @@ public abstract class Waypt {
                 "apt_faaid", "apt_name", "rwy_tdze", "rwy_beglat", "rwy_beglon",
                 "rwy_endlat", "rwy_endlon", "rwy_number", "apt_elev", "apt_icaoid" };
 
-        public static RwyWaypt find (SQLiteDatabase sqldb, String ident)
+        // fill in resolver query binds for an <aptid>,<rwyno> pair
+        public static void setBinds (String[] binds, int i, String aptid, String rwyno)
         {
-            // accept <aptid>.<rwyno>
-            int i = ident.indexOf ('.');
-            if (i >= 0) {
-                String aptid = ident.substring (0, i);
-                String rwyno = ident.substring (++i);
-                return find (sqldb, aptid, rwyno);
-            }
-
-            // also try without the . (assumes <aptid> is 3 or 4 chars)
-            i = ident.length ();
-            if (i < 4) return null;
-            RwyWaypt w = find (sqldb, ident.substring (0, 3), ident.substring (3));
-            if (w != null) return w;
-            if (i < 5) return null;
-            return find (sqldb, ident.substring (0, 4), ident.substring (4));
+            binds[i]   = aptid;
+            binds[i+1] = aptid;
+            binds[i+2] = rwyno;
+            binds[i+3] = '0' + rwyno;
         }
 
-        private static RwyWaypt find (SQLiteDatabase sqldb, String aptid, String rwyno)
+        // make waypoint from rwycols at current cursor row
+        public static RwyWaypt fromCursor (Cursor cursor)
         {
-            try (Cursor cursor = sqldb.query ("runways,airports", rwycols,
-                    "(apt_icaoid=? OR apt_faaid=?) AND rwy_faaid=apt_faaid AND (rwy_number=? OR rwy_number=?)",
-                    new String[] { aptid, aptid, rwyno, '0' + rwyno }, null, null, null, null)) {
-                if (cursor.moveToFirst ()) {
-                    double tdze    = cursor.isNull (2) ? cursor.getDouble (8) : cursor.getDouble (2);
-                    double beglat  = cursor.getDouble (3);
-                    double beglon  = cursor.getDouble (4);
-                    double endlat  = cursor.getDouble (5);
-                    double endlon  = cursor.getDouble (6);
-                    rwyno          = cursor.getString (7);
-                    double rwytc   = Lib.LatLonTC (beglat, beglon, endlat, endlon);
-                    RwyWaypt waypt = new RwyWaypt ();
-                    // use faaid for airport cuz it's shorter than icaoid
-                    waypt.ident    = cursor.getString (0) + "." + rwyno;
-                    waypt.apticao  = cursor.getString (9);
-                    // loc antenna 1000ft past far end numbers
-                    waypt.lat      = Lib.LatHdgDist2Lat (endlat, rwytc, 1000.0 / Lib.FtPerNM);
-                    waypt.lon      = Lib.LatLonHdgDist2Lon (endlat, endlon, rwytc, 1000.0 / Lib.FtPerNM);
-                    // gs antenna 1000ft past near end numbers
-                    waypt.gs_elev  = tdze;
-                    waypt.gs_tilt  = 3.25;
-                    waypt.gs_lat   = Lib.LatHdgDist2Lat (beglat, rwytc, 1000.0 / Lib.FtPerNM);
-                    waypt.gs_lon   = Lib.LatLonHdgDist2Lon (beglat, beglon, rwytc, 1000.0 / Lib.FtPerNM);
-                    waypt.thdg     = rwytc;
-                    waypt.elev     = tdze;
-                    waypt.name     = cursor.getString (1) + "\nRunway " + rwyno;
-                    // dme antenna right at near end numbers
-                    waypt.dme_lat  = beglat;
-                    waypt.dme_lon  = beglon;
-                    waypt.magvar   = Double.NaN;
-                    waypt.validModes = valwgs;
-                    return waypt;
-                }
-            }
-            return null;
+            double tdze    = cursor.isNull (2) ? cursor.getDouble (8) : cursor.getDouble (2);
+            double beglat  = cursor.getDouble (3);
+            double beglon  = cursor.getDouble (4);
+            double endlat  = cursor.getDouble (5);
+            double endlon  = cursor.getDouble (6);
+            String rwyno   = cursor.getString (7);
+            double rwytc   = Lib.LatLonTC (beglat, beglon, endlat, endlon);
+            RwyWaypt waypt = new RwyWaypt ();
+            // use faaid for airport cuz it's shorter than icaoid
+            waypt.ident    = cursor.getString (0) + "." + rwyno;
+            waypt.apticao  = cursor.getString (9);
+            // loc antenna 1000ft past far end numbers
+            waypt.lat      = Lib.LatHdgDist2Lat (endlat, rwytc, 1000.0 / Lib.FtPerNM);
+            waypt.lon      = Lib.LatLonHdgDist2Lon (endlat, endlon, rwytc, 1000.0 / Lib.FtPerNM);
+            // gs antenna 1000ft past near end numbers
+            waypt.gs_elev  = tdze;
+            waypt.gs_tilt  = 3.25;
+            waypt.gs_lat   = Lib.LatHdgDist2Lat (beglat, rwytc, 1000.0 / Lib.FtPerNM);
+            waypt.gs_lon   = Lib.LatLonHdgDist2Lon (beglat, beglon, rwytc, 1000.0 / Lib.FtPerNM);
+            waypt.thdg     = rwytc;
+            waypt.elev     = tdze;
+            waypt.name     = cursor.getString (1) + "\nRunway " + rwyno;
+            // dme antenna right at near end numbers
+            waypt.dme_lat  = beglat;
+            waypt.dme_lon  = beglon;
+            waypt.magvar   = Double.NaN;
+            waypt.validModes = valwgs;
+            return waypt;
         }
     }
 }
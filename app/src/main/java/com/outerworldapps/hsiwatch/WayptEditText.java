@@ -23,18 +23,23 @@ package com.outerworldapps.hsiwatch;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.inputmethod.CompletionInfo;
+import android.view.inputmethod.InputMethodManager;
 import android.widget.TextView;
 
 import java.util.Locale;
+import java.util.TreeMap;
 
 /**
  * Input box for entering a waypoint.
  */
 @SuppressLint("AppCompatCustomView")
-public class WayptEditText extends MyEditText implements MyEditText.Listener, View.OnTouchListener {
+public class WayptEditText extends MyEditText implements MyEditText.Listener, TextWatcher, View.OnTouchListener {
 
     // mandatory callbacks
     public interface WayptChangeListener {
@@ -45,7 +50,13 @@ public class WayptEditText extends MyEditText implements MyEditText.Listener, Vi
 
     private final static String dbnotready = "must wait for database to download\ndo MENU\u25B7UPDDB to start if not already";
 
+    private final static int MAXCOMPLS = 8;
+
+    private CharSequence savedCompl;
+    private NameSearchPage nameSearchPage;
     private String savedIdent;
+    private String[] completions;
+    public  TextView complView;     // optional, shows completions while typing
     public  WayptChangeListener wcl;
 
     public WayptEditText (Context ctx, AttributeSet attrs)
@@ -62,7 +73,9 @@ public class WayptEditText extends MyEditText implements MyEditText.Listener, Vi
     {
         savedIdent = "";
         listener = this;  // enable onEnterKey() and onBackKey() callbacks
+        completions = new String[MAXCOMPLS];
         setOnTouchListener (this);
+        addTextChangedListener (this);
     }
 
     // clicked on, make sure there is a database before they can enter anything
@@ -97,7 +110,12 @@ public class WayptEditText extends MyEditText implements MyEditText.Listener, Vi
             MainActivity ma = (MainActivity) getContext ();
             final Waypt waypt = Waypt.find (ma, sqldb, idstr, ma.curLoc);
             if (waypt == null) {
-                wcl.showToast ("unknown " + idstr);
+
+                // not an ident, maybe it is (part of) a name
+                if (nameSearchPage == null) nameSearchPage = new NameSearchPage (ma);
+                if (! nameSearchPage.show (v.getText ().toString (), this)) {
+                    wcl.showToast ("unknown " + idstr);
+                }
                 return;
             }
 
@@ -113,6 +131,66 @@ public class WayptEditText extends MyEditText implements MyEditText.Listener, Vi
         }
     }
 
+    // text changed by typing a character, show idents that start with what has been typed
+    // user waypoints first, then from the database
+    @Override  // TextWatcher
+    public void afterTextChanged (Editable s)
+    {
+        String prefix = s.toString ().replace (" ", "").toUpperCase (Locale.US);
+
+        // back to the original text, put original description back
+        if (prefix.equals (savedIdent) || prefix.equals ("")) {
+            if ((complView != null) && (savedCompl != null)) {
+                complView.setText (savedCompl);
+                savedCompl = null;
+            }
+            return;
+        }
+
+        int n = 0;
+        TreeMap<String,Waypt.UserWaypt> uwps = Waypt.UserWaypt.getUserWaypoints (getContext ());
+        for (String uwid : uwps.tailMap (prefix).keySet ()) {
+            if ((n >= MAXCOMPLS) || ! uwid.startsWith (prefix)) break;
+            completions[n++] = uwid;
+        }
+        MainActivity ma = (MainActivity) getContext ();
+        IdentIndex identIndex = ma.downloadThread.getIdentIndex ();
+        if (identIndex != null) n = identIndex.complete (prefix, completions, n);
+
+        // show them in the full-screen keyboard's suggestion area if it has one
+        CompletionInfo[] cis = new CompletionInfo[n];
+        for (int i = 0; i < n; i ++) {
+            cis[i] = new CompletionInfo (i, i, completions[i]);
+        }
+        InputMethodManager imm = (InputMethodManager) ma.getSystemService (Context.INPUT_METHOD_SERVICE);
+        if (imm != null) imm.displayCompletions (this, cis);
+
+        // also show them in the description box if given one
+        if (complView != null) {
+            if (savedCompl == null) savedCompl = complView.getText ();
+            StringBuilder sb = new StringBuilder ();
+            for (int i = 0; i < n; i ++) {
+                if (i > 0) sb.append (' ');
+                sb.append (completions[i]);
+            }
+            complView.setText (sb);
+        }
+    }
+
+    @Override  // TextWatcher
+    public void beforeTextChanged (CharSequence s, int start, int count, int after) { }
+
+    @Override  // TextWatcher
+    public void onTextChanged (CharSequence s, int start, int before, int count) { }
+
+    // completion selected from keyboard suggestion area, treat as if typed in and entered
+    @Override  // TextView
+    public void onCommitCompletion (CompletionInfo text)
+    {
+        setText (text.getText ());
+        onEnterKey (this);
+    }
+
     // restore original ident when BACK key pressed
     @Override  // Listener
     public void onBackKey (TextView v)
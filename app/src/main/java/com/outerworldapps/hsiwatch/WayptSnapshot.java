@@ -0,0 +1,319 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compact read-only snapshot of airports, navaids and fixes.
+ * Written alongside the database when it is downloaded, then memory-mapped.
+ * Entries are sorted by Morton (Z-order) key so a lat/lon box query is a
+ * handful of binary searches into primitive arrays, with no Cursor or
+ * SQLite page cache involved.
+ *
+ *  File layout (little endian ints):
+ *   magic, version, count, strbytes
+ *   keys[count]     Morton key of quantized lat/lon, ascending
+ *   lats[count]     microdegrees
+ *   lons[count]     microdegrees
+ *   infos[count]    type << 24 | runway length feet
+ *   identofs[count] offset of ident in strings
+ *   strings[strbytes] length byte followed by ascii ident
+ */
+public class WayptSnapshot {
+    public final static int TYPE_APT = 1;   // airport, located at start of longest runway
+    public final static int TYPE_VOR = 2;   // VOR, VOR/DME, VORTAC
+    public final static int TYPE_NAV = 3;   // other navaids
+    public final static int TYPE_FIX = 4;
+
+    private final static int MAGIC   = 0x53575348;  // "HSWS"
+    private final static int VERSION = 1;
+    private final static int HDRINTS = 4;
+    private final static int QBITS   = 15;          // quantization bits for each of lat,lon
+    private final static int MAXBLOCKS = 64;        // max Morton blocks scanned per query
+
+    // receives each entry found by query()
+    public interface Visitor {
+        void visit (WayptSnapshot snap, int i);
+    }
+
+    private int count;
+    private IntBuffer keys;
+    private IntBuffer lats;
+    private IntBuffer lons;
+    private IntBuffer infos;
+    private IntBuffer identofs;
+    private ByteBuffer strings;
+
+    // snapshot filename that goes with the database filename
+    public static String snapPath (String dbpath)
+    {
+        return dbpath.substring (0, dbpath.length () - 3) + ".snap";
+    }
+
+    /**
+     * Write snapshot file from the given database.
+     * Called in download thread after SpatialIndex.build() so the mapcells table is there.
+     */
+    public static void build (File dbfile, File snapfile)
+            throws IOException
+    {
+        ArrayList<String> idents = new ArrayList<> ();
+        int[] latarr = new int[1024];
+        int[] lonarr = new int[1024];
+        int[] infarr = new int[1024];
+        int n = 0;
+
+        SQLiteDatabase sqldb = SQLiteDatabase.openDatabase (dbfile.getPath (), null,
+                SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            String[] queries = {
+                    "SELECT mc_ident,mc_lat,mc_lon,mc_rft,mc_nav FROM mapcells",
+                    "SELECT nav_faaid,nav_lat,nav_lon,0,-1 FROM navaids WHERE nav_type NOT LIKE 'VOR%' AND nav_faaid IS NOT NULL",
+                    "SELECT fix_name,fix_lat,fix_lon,0,-2 FROM fixes WHERE fix_name IS NOT NULL" };
+            for (String query : queries) {
+                try (Cursor cursor = sqldb.rawQuery (query, null)) {
+                    if (cursor.moveToFirst ()) do {
+                        if (n >= latarr.length) {
+                            latarr = Arrays.copyOf (latarr, n * 2);
+                            lonarr = Arrays.copyOf (lonarr, n * 2);
+                            infarr = Arrays.copyOf (infarr, n * 2);
+                        }
+                        int type;
+                        switch (cursor.getInt (4)) {
+                            case  1: type = TYPE_VOR; break;
+                            case  0: type = TYPE_APT; break;
+                            case -1: type = TYPE_NAV; break;
+                            default: type = TYPE_FIX; break;
+                        }
+                        idents.add (cursor.getString (0));
+                        latarr[n] = (int) Math.round (cursor.getDouble (1) * 1000000.0);
+                        lonarr[n] = (int) Math.round (cursor.getDouble (2) * 1000000.0);
+                        infarr[n] = (type << 24) | Math.min (cursor.getInt (3), 0xFFFFFF);
+                        n ++;
+                    } while (cursor.moveToNext ());
+                }
+            }
+        } finally {
+            sqldb.close ();
+        }
+
+        // sort by Morton key, packing key and original index into a long so it's a primitive sort
+        long[] sorted = new long[n];
+        int strbytes = 0;
+        for (int i = 0; i < n; i ++) {
+            int key = mortonKey (quantLat (latarr[i] / 1000000.0), quantLon (lonarr[i] / 1000000.0));
+            sorted[i] = ((long) key << 32) | i;
+            strbytes += 1 + Math.min (idents.get (i).length (), 255);
+        }
+        Arrays.sort (sorted);
+
+        // write it all out via a writable mapping then rename into place
+        File tempfile = new File (snapfile.getPath () + ".tmp");
+        long filesize = (HDRINTS + 5L * n) * 4 + strbytes;
+        try (RandomAccessFile raf = new RandomAccessFile (tempfile, "rw")) {
+            raf.setLength (filesize);
+            MappedByteBuffer mbb = raf.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, filesize);
+            mbb.order (ByteOrder.LITTLE_ENDIAN);
+            mbb.putInt (MAGIC);
+            mbb.putInt (VERSION);
+            mbb.putInt (n);
+            mbb.putInt (strbytes);
+            for (long s : sorted) mbb.putInt ((int) (s >> 32));
+            for (long s : sorted) mbb.putInt (latarr[(int)s]);
+            for (long s : sorted) mbb.putInt (lonarr[(int)s]);
+            for (long s : sorted) mbb.putInt (infarr[(int)s]);
+            int ofs = 0;
+            for (long s : sorted) {
+                mbb.putInt (ofs);
+                ofs += 1 + Math.min (idents.get ((int) s).length (), 255);
+            }
+            for (long s : sorted) {
+                String ident = idents.get ((int) s);
+                int len = Math.min (ident.length (), 255);
+                mbb.put ((byte) len);
+                for (int j = 0; j < len; j ++) mbb.put ((byte) ident.charAt (j));
+            }
+            mbb.force ();
+        }
+        if (! tempfile.renameTo (snapfile)) {
+            throw new IOException ("error renaming " + tempfile.getPath () + " to " + snapfile.getPath ());
+        }
+    }
+
+    /**
+     * Memory-map snapshot that goes with the given database.
+     * Returns null if there isn't one or it is no good.
+     */
+    public static WayptSnapshot open (String dbpath)
+    {
+        File snapfile = new File (snapPath (dbpath));
+        if (! snapfile.exists ()) return null;
+        try (RandomAccessFile raf = new RandomAccessFile (snapfile, "r")) {
+            MappedByteBuffer mbb = raf.getChannel ().map (FileChannel.MapMode.READ_ONLY, 0, raf.length ());
+            mbb.order (ByteOrder.LITTLE_ENDIAN);
+            if ((mbb.getInt (0) != MAGIC) || (mbb.getInt (4) != VERSION)) {
+                throw new IOException ("bad magic/version");
+            }
+            WayptSnapshot snap = new WayptSnapshot ();
+            int n = snap.count = mbb.getInt (8);
+            int strbytes = mbb.getInt (12);
+            if ((HDRINTS + 5L * n) * 4 + strbytes != raf.length ()) {
+                throw new IOException ("bad file length");
+            }
+            snap.keys     = slice (mbb, HDRINTS,         n).asIntBuffer ();
+            snap.lats     = slice (mbb, HDRINTS + n,     n).asIntBuffer ();
+            snap.lons     = slice (mbb, HDRINTS + n * 2, n).asIntBuffer ();
+            snap.infos    = slice (mbb, HDRINTS + n * 3, n).asIntBuffer ();
+            snap.identofs = slice (mbb, HDRINTS + n * 4, n).asIntBuffer ();
+            mbb.position ((HDRINTS + n * 5) * 4);
+            snap.strings  = mbb.slice ();
+            return snap;
+        } catch (IOException ioe) {
+            Log.w (MainActivity.TAG, "error opening " + snapfile.getPath (), ioe);
+            return null;
+        }
+    }
+
+    // get little-endian view of nints ints starting at int index
+    private static ByteBuffer slice (MappedByteBuffer mbb, int index, int nints)
+    {
+        mbb.position (index * 4);
+        ByteBuffer bb = mbb.slice ();
+        bb.limit (nints * 4);
+        return bb.order (ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getCount () { return count; }
+    public double getLat (int i) { return lats.get (i) / 1000000.0; }
+    public double getLon (int i) { return lons.get (i) / 1000000.0; }
+    public int getType (int i) { return infos.get (i) >>> 24; }
+    public int getRwyFt (int i) { return infos.get (i) & 0xFFFFFF; }
+
+    public String getIdent (int i)
+    {
+        int ofs = identofs.get (i);
+        int len = strings.get (ofs) & 0xFF;
+        char[] chars = new char[len];
+        for (int j = 0; j < len; j ++) chars[j] = (char) strings.get (ofs + 1 + j);
+        return new String (chars);
+    }
+
+    /**
+     * Find all entries within the given box.
+     *  Input:
+     *   westLon,eastLon = may be outside -180..+180, eastLon > westLon
+     *  Output:
+     *   visitor.visit() called for each entry in box
+     * Does not allocate anything so can be called from any thread as often as needed.
+     */
+    public void query (double southLat, double northLat, double westLon, double eastLon, Visitor visitor)
+    {
+        southLat = Math.max (southLat, -90.0);
+        northLat = Math.min (northLat,  90.0);
+        double lonWidth = eastLon - westLon;
+        int qsouth = quantLat (southLat);
+        int qnorth = quantLat (northLat);
+        int qwest  = quantLon (westLon);
+        int qwidth = (lonWidth >= 360.0) ? (1 << QBITS) - 1 : (int) Math.ceil (lonWidth / 360.0 * (1 << QBITS));
+
+        // pick a block size big enough to cover the box in a few blocks
+        // each block of 2^L by 2^L quantized units is a contiguous range of Morton keys
+        int level = 0;
+        while ((level < QBITS) &&
+                (((qnorth >> level) - (qsouth >> level) + 1) * ((qwidth >> level) + 2) > MAXBLOCKS)) {
+            level ++;
+        }
+        int nlonblocks = 1 << (QBITS - level);
+        int blockkeys  = 1 << (level * 2);
+        int westblock  = qwest >> level;
+        int eastblock  = (qwest + qwidth) >> level;
+        if (eastblock - westblock >= nlonblocks) eastblock = westblock + nlonblocks - 1;
+
+        for (int latblock = qsouth >> level; latblock <= qnorth >> level; latblock ++) {
+            for (int b = westblock; b <= eastblock; b ++) {
+                int lonblock = b & (nlonblocks - 1);
+                int lokey = mortonKey (latblock << level, lonblock << level);
+                int hikey = lokey + blockkeys - 1;
+
+                // binary search for first key in block then scan to end of block
+                int lo = 0;
+                int hi = count;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (keys.get (mid) < lokey) lo = mid + 1;
+                    else hi = mid;
+                }
+                for (int i = lo; (i < count) && (keys.get (i) <= hikey); i ++) {
+                    double lat = getLat (i);
+                    if ((lat < southLat) || (lat > northLat)) continue;
+                    double dlon = getLon (i) - westLon;
+                    while (dlon <    0.0) dlon += 360.0;
+                    while (dlon >= 360.0) dlon -= 360.0;
+                    if (dlon > lonWidth) continue;
+                    visitor.visit (this, i);
+                }
+            }
+        }
+    }
+
+    // quantize lat,lon to QBITS each
+    private static int quantLat (double lat)
+    {
+        int q = (int) Math.floor ((lat + 90.0) / 180.0 * (1 << QBITS));
+        return Math.max (0, Math.min ((1 << QBITS) - 1, q));
+    }
+
+    private static int quantLon (double lon)
+    {
+        int q = (int) Math.floor ((Lib.NormalLon (lon) + 180.0) / 360.0 * (1 << QBITS));
+        return q & ((1 << QBITS) - 1);
+    }
+
+    // interleave quantized lat,lon bits, lon in the even bits, lat in the odd bits
+    private static int mortonKey (int qlat, int qlon)
+    {
+        return spreadBits (qlon) | (spreadBits (qlat) << 1);
+    }
+
+    private static int spreadBits (int v)
+    {
+        v &= (1 << QBITS) - 1;
+        v = (v | (v << 8)) & 0x00FF00FF;
+        v = (v | (v << 4)) & 0x0F0F0F0F;
+        v = (v | (v << 2)) & 0x33333333;
+        v = (v | (v << 1)) & 0x55555555;
+        return v;
+    }
+}
@@ -29,8 +29,9 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import java.io.Closeable;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 import androidx.annotation.NonNull;
 
@@ -38,9 +39,7 @@ import androidx.annotation.NonNull;
  * Use WiFi UDP to receive GPS location and status information.
  */
 public class WiFiUDPGps extends ExternalGps {
-    private byte[] buffer;
-    private DatagramPacket packet;
-    private DatagramSocket socket;
+    private DatagramChannel channel;
     private int portno;
     private MyEditText portnoView;
     private SharedPreferences prefs;
@@ -109,10 +108,9 @@ public class WiFiUDPGps extends ExternalGps {
     protected @NonNull Closeable openSocket ()
             throws Exception
     {
-        socket = new DatagramSocket (portno);
-        buffer = new byte[4096];
-        packet = new DatagramPacket (buffer, buffer.length);
-        return socket;
+        channel = DatagramChannel.open ();
+        channel.bind (new InetSocketAddress (portno));
+        return channel;
     }
 
     /**
@@ -120,11 +118,11 @@ public class WiFiUDPGps extends ExternalGps {
      * May contain more than one NMEA message.
      */
     @Override  // ExternalGps
-    protected String readSocket ()
+    protected int readSocket (ByteBuffer buf)
             throws Exception
     {
-        socket.receive (packet);
-        return new String (buffer, 0, packet.getLength ());
+        channel.receive (buf);
+        return buf.position ();
     }
 
     @Override  // ExternalGps
@@ -0,0 +1,228 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Build deltas by hand and check DbDelta.apply() patches or rejects them.
+ */
+public class DbDeltaTest {
+    private final static int OLDSIZE = 200000;  // bigger than apply()'s buffer so copies get split
+
+    private byte[] olddata;
+    private ByteArrayOutputStream newdata;
+    private ByteArrayOutputStream opbytes;
+    private DataOutputStream ops;
+    private File deltafile;
+    private File newfile;
+
+    @Before
+    public void setUp ()
+            throws IOException
+    {
+        olddata = new byte[OLDSIZE];
+        new Random (12345).nextBytes (olddata);
+        newdata = new ByteArrayOutputStream ();
+        opbytes = new ByteArrayOutputStream ();
+        ops     = new DataOutputStream (opbytes);
+        deltafile = File.createTempFile ("dbdelta", ".dbd");
+        newfile   = File.createTempFile ("dbdelta", ".db");
+    }
+
+    @After
+    public void tearDown ()
+    {
+        Lib.Ignored (deltafile.delete ());
+        Lib.Ignored (newfile.delete ());
+    }
+
+    // append copy op, newdata gets what it should copy
+    private void copy (int oldofs, int len)
+            throws IOException
+    {
+        ops.writeByte ('C');
+        ops.writeLong (oldofs);
+        ops.writeInt (len);
+        if ((oldofs >= 0) && (oldofs + len <= OLDSIZE)) newdata.write (olddata, oldofs, len);
+    }
+
+    // append literal data op
+    private void data (String str)
+            throws IOException
+    {
+        byte[] bytes = str.getBytes ("US-ASCII");
+        ops.writeByte ('D');
+        ops.writeInt (bytes.length);
+        ops.write (bytes);
+        newdata.write (bytes);
+    }
+
+    // write delta file with the given header and the ops so far
+    private void writeDelta (long size, byte[] md5)
+            throws IOException
+    {
+        try (DataOutputStream dos = new DataOutputStream (new FileOutputStream (deltafile))) {
+            dos.writeInt (DbDelta.MAGIC);
+            dos.writeLong (size);
+            dos.write (md5);
+            dos.write (opbytes.toByteArray ());
+            dos.writeByte ('E');
+        }
+    }
+
+    // write delta file with correct header for the ops so far
+    private void writeDelta ()
+            throws Exception
+    {
+        byte[] expect = newdata.toByteArray ();
+        writeDelta (expect.length, MessageDigest.getInstance ("MD5").digest (expect));
+    }
+
+    // apply delta to old data and return what got written
+    private byte[] apply ()
+            throws Exception
+    {
+        DbDelta.apply (deltafile, new ByteArrayInputStream (olddata), newfile);
+        try (RandomAccessFile raf = new RandomAccessFile (newfile, "r")) {
+            byte[] bytes = new byte[(int) raf.length ()];
+            raf.readFully (bytes);
+            return bytes;
+        }
+    }
+
+    // apply delta that should be rejected with the given message
+    private void applyBad (String msg)
+    {
+        try {
+            apply ();
+            fail ("bad delta accepted");
+        } catch (Exception e) {
+            assertTrue (e instanceof IOException);
+            assertTrue (e.getMessage ().startsWith (msg));
+        }
+    }
+
+    @Test
+    public void copyAndData ()
+            throws Exception
+    {
+        copy (1000, 70000);
+        data ("new runway");
+        copy (150000, 10000);
+        data ("end");
+        writeDelta ();
+        assertTrue (Arrays.equals (newdata.toByteArray (), apply ()));
+    }
+
+    @Test
+    public void copiesOutOfOrder ()
+            throws Exception
+    {
+        // old file is read once in order so these get reordered
+        // including ones that overlap or are inside an earlier one
+        copy (100000, 70000);
+        copy (0, 5000);
+        data ("x");
+        copy (90000, 20000);
+        copy (100500, 100);
+        copy (50000, 0);
+        copy (OLDSIZE - 10, 10);
+        copy (95000, 80000);
+        writeDelta ();
+        assertTrue (Arrays.equals (newdata.toByteArray (), apply ()));
+    }
+
+    @Test
+    public void overflow ()
+            throws Exception
+    {
+        copy (0, 1000);
+        data ("too much");
+        writeDelta (1000, new byte[16]);
+        applyBad ("delta overflows");
+    }
+
+    @Test
+    public void shortDelta ()
+            throws Exception
+    {
+        copy (0, 1000);
+        writeDelta (2000, new byte[16]);
+        applyBad ("delta wrote 1000 of 2000");
+    }
+
+    @Test
+    public void badOffset ()
+            throws Exception
+    {
+        copy (OLDSIZE - 100, 200);
+        writeDelta (200, new byte[16]);
+        applyBad ("bad delta copy");
+    }
+
+    @Test
+    public void negativeOffset ()
+            throws Exception
+    {
+        copy (-1, 10);
+        writeDelta (10, new byte[16]);
+        applyBad ("bad delta copy");
+    }
+
+    @Test
+    public void md5Mismatch ()
+            throws Exception
+    {
+        copy (0, 1000);
+        data ("abc");
+        byte[] md5 = MessageDigest.getInstance ("MD5").digest (newdata.toByteArray ());
+        md5[0] ^= 1;
+        writeDelta (newdata.size (), md5);
+        applyBad ("delta md5 mismatch");
+    }
+
+    @Test
+    public void badMagic ()
+            throws Exception
+    {
+        try (FileOutputStream fos = new FileOutputStream (deltafile)) {
+            fos.write (new byte[32]);
+        }
+        applyBad ("bad delta magic");
+    }
+}
@@ -0,0 +1,220 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.hsiwatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Feed recorded NMEA sentences through DecodeNMEA and check the decoded values.
+ */
+public class DecodeNMEATest {
+    private final static double EPS = 1.0E-9;
+
+    private final static String GGA1 = "$GPGGA,123519.00,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*69\r\n";
+    private final static String RMC1 = "$GPRMC,123519.00,A,4807.038,N,01131.000,E,022.4,084.4,230920,003.1,W*41\r\n";
+    private final static String GGA2 = "$GNGGA,235959.50,3351.6500,S,07003.2100,W,1,10,0.8,-12.3,M,-30.1,M,,*42\r\n";
+    private final static String RMC2 = "$GNRMC,235959.50,A,3351.6500,S,07003.2100,W,105.50,271.3,311221,,,A*7F\r\n";
+    private final static String GSA  = "$GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1*39\r\n";
+    private final static String GSV1 = "$GPGSV,2,1,07,04,40,083,46,05,17,308,41,09,07,344,39,12,22,228,45*74\r\n";
+    private final static String GSV2 = "$GPGSV,2,2,07,24,65,012,30,25,03,150,,31,80,270,20*46\r\n";
+
+    private final static long TIME1 = 1600864519000L;   // 2020-09-23 12:35:19.000 UTC
+    private final static long TIME2 = 1640995199500L;   // 2021-12-31 23:59:59.500 UTC
+
+    private DecodeNMEA decoder;
+    private ArrayList<GpsLocation> locations;
+    private ArrayList<TreeMap<Integer,GpsStatus>> statuses;
+
+    // decoder reuses its records so copy whatever it passes us
+    private class TestListener implements DecodeNMEA.Listener {
+        @Override
+        public void runOnUiThread (Runnable r)
+        {
+            r.run ();
+        }
+
+        @Override
+        public void gpsLocationReceived (GpsLocation location)
+        {
+            GpsLocation copy = new GpsLocation ();
+            copy.lat        = location.lat;
+            copy.lon        = location.lon;
+            copy.altitude   = location.altitude;
+            copy.speed      = location.speed;
+            copy.truecourse = location.truecourse;
+            copy.time       = location.time;
+            locations.add (copy);
+        }
+
+        @Override
+        public void gpsStatusReceived (Collection<GpsStatus> sats)
+        {
+            TreeMap<Integer,GpsStatus> copies = new TreeMap<> ();
+            for (GpsStatus status : sats) {
+                GpsStatus copy = new GpsStatus ();
+                copy.prn  = status.prn;
+                copy.elev = status.elev;
+                copy.azim = status.azim;
+                copy.snr  = status.snr;
+                copy.used = status.used;
+                copies.put (copy.prn, copy);
+            }
+            statuses.add (copies);
+        }
+    }
+
+    @Before
+    public void setUp ()
+    {
+        locations = new ArrayList<> ();
+        statuses  = new ArrayList<> ();
+        decoder   = new DecodeNMEA (new TestListener ());
+        decoder.locationEnabled = true;
+        decoder.statusEnabled   = true;
+    }
+
+    private void feed (String text)
+            throws Exception
+    {
+        byte[] bytes = text.getBytes (StandardCharsets.US_ASCII);
+        decoder.gotBytes (bytes, 0, bytes.length);
+    }
+
+    private static void checkLocation1 (GpsLocation loc)
+    {
+        assertEquals (48.0 + 7.038 / 60.0, loc.lat, EPS);
+        assertEquals (11.0 + 31.0 / 60.0, loc.lon, EPS);
+        assertEquals (545.4, loc.altitude, EPS);
+        assertEquals (22.4 / Lib.KtPerMPS, loc.speed, EPS);
+        assertEquals (84.4, loc.truecourse, EPS);
+        assertEquals (TIME1, loc.time);
+    }
+
+    @Test
+    public void ggaRmcPairs ()
+            throws Exception
+    {
+        feed (GGA1 + RMC1 + GGA2 + RMC2);
+        assertEquals (2, locations.size ());
+        checkLocation1 (locations.get (0));
+
+        GpsLocation loc = locations.get (1);
+        assertEquals (- (33.0 + 51.65 / 60.0), loc.lat, EPS);
+        assertEquals (- (70.0 + 3.21 / 60.0), loc.lon, EPS);
+        assertEquals (-12.3, loc.altitude, EPS);
+        assertEquals (105.5 / Lib.KtPerMPS, loc.speed, EPS);
+        assertEquals (271.3, loc.truecourse, EPS);
+        assertEquals (TIME2, loc.time);
+    }
+
+    @Test
+    public void splitAcrossReads ()
+            throws Exception
+    {
+        byte[] bytes = (GGA1 + RMC1).getBytes (StandardCharsets.US_ASCII);
+        for (int i = 0; i < bytes.length; i ++) {
+            decoder.gotBytes (bytes, i, 1);
+        }
+        assertEquals (1, locations.size ());
+        checkLocation1 (locations.get (0));
+    }
+
+    @Test
+    public void noiseIgnored ()
+            throws Exception
+    {
+        // junk, a sentence cut off by end of line, then good ones
+        feed ("garbage\r\n$GPGGA,123519.00,4807.0\r\n" + GGA1 + RMC1);
+        assertEquals (1, locations.size ());
+        checkLocation1 (locations.get (0));
+    }
+
+    @Test
+    public void badChecksum ()
+    {
+        try {
+            feed (GGA1.replace ("*69", "*68"));
+            fail ("bad checksum accepted");
+        } catch (Exception e) {
+            assertEquals ("bad NMEA checksum", e.getMessage ());
+        }
+        assertTrue (locations.isEmpty ());
+    }
+
+    @Test
+    public void satellites ()
+            throws Exception
+    {
+        // nothing to show until a GSV cycle is complete
+        feed (GSA + GSV1);
+        assertTrue (statuses.isEmpty ());
+
+        feed (GSV2);
+        assertEquals (1, statuses.size ());
+        TreeMap<Integer,GpsStatus> sats = statuses.get (0);
+        assertEquals (7, sats.size ());
+
+        GpsStatus s4 = sats.get (4);
+        assertEquals (40.0, s4.elev, EPS);
+        assertEquals (83.0, s4.azim, EPS);
+        assertEquals (46.0, s4.snr, EPS);
+
+        // empty snr means not being tracked
+        GpsStatus s25 = sats.get (25);
+        assertEquals (3.0, s25.elev, EPS);
+        assertEquals (150.0, s25.azim, EPS);
+        assertEquals (0.0, s25.snr, EPS);
+
+        // GSA lists the ones used for the fix
+        for (int prn : new int[] { 4, 5, 9, 12, 24 }) assertTrue (sats.get (prn).used);
+        assertFalse (sats.get (25).used);
+        assertFalse (sats.get (31).used);
+
+        // another GSA updates the same satellites
+        feed ("$GPGSA,A,3,31,,,,,,,,,,,,2.5,1.3,2.1*36\r\n");
+        assertEquals (2, statuses.size ());
+        sats = statuses.get (1);
+        assertTrue (sats.get (31).used);
+        assertFalse (sats.get (4).used);
+    }
+
+    @Test
+    public void disabled ()
+            throws Exception
+    {
+        decoder.locationEnabled = false;
+        decoder.statusEnabled   = false;
+        feed (GGA1 + RMC1 + GSA + GSV1 + GSV2);
+        assertTrue (locations.isEmpty ());
+        assertTrue (statuses.isEmpty ());
+    }
+}